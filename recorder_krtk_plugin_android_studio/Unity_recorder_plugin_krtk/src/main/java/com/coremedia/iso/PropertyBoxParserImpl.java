@@ -1,20 +1,27 @@
 package com.coremedia.iso;
 
 import com.coremedia.iso.boxes.Box;
-import com.unity3d.player.UnityPlayer;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.net.URL;
-import java.util.Enumeration;
 import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Box parser backed by {@link DefaultBoxRegistry}, which box-registry.gradle generates from
+ * isoparser-default.properties at build time. Creating one does no asset I/O, no classpath
+ * scan and no reflection, so it is cheap and works on any thread.
+ * Custom properties passed to the constructor are still resolved by reflection. The lookup order
+ * is the one of the merged properties the parser used to load: uuid with user type, parent-uuid,
+ * uuid, or type, parent-type, and finally default; at each step a custom entry wins over the
+ * registry entry with the same key.
+ */
 public class PropertyBoxParserImpl extends AbstractBoxParser {
     Properties mapping;
+    boolean useDefaultRegistry;
     Pattern constuctorPattern = Pattern.compile("(.*)\\((.*?)\\)");
     StringBuilder buildLookupStrings = new StringBuilder();
     ThreadLocal<String> clazzName = new ThreadLocal<>();
@@ -22,63 +29,44 @@ public class PropertyBoxParserImpl extends AbstractBoxParser {
     static String[] EMPTY_STRING_ARRAY = new String[0];
 
     public PropertyBoxParserImpl(String... customProperties) {
-        InputStream is = null;
-        try {
-            is = UnityPlayer.currentActivity.getApplicationContext().getAssets().open("isoparser-default.properties");
-        } catch (IOException e) {
-            e.printStackTrace();
+        this.useDefaultRegistry = true;
+        if (customProperties.length == 0) {
+            return;
         }
 
+        this.mapping = new Properties();
         try {
-            this.mapping = new Properties();
-
-            try {
-                this.mapping.load(is);
-                ClassLoader cl = Thread.currentThread().getContextClassLoader();
-                if (cl == null) {
-                    cl = ClassLoader.getSystemClassLoader();
-                }
-
-                Enumeration<URL> enumeration = cl.getResources("isoparser-custom.properties");
-
-                while(enumeration.hasMoreElements()) {
-                    URL url = enumeration.nextElement();
-                    InputStream customIS = url.openStream();
-
-                    try {
-                        this.mapping.load(customIS);
-                    } finally {
-                        customIS.close();
-                    }
+            for (String customProperty : customProperties) {
+                InputStream customIS = this.getClass().getResourceAsStream(customProperty);
+                if (customIS == null) {
+                    throw new RuntimeException("Box mapping " + customProperty + " not found");
                 }
-
-                String[] var8 = customProperties;
-                int var7 = customProperties.length;
-
-                for(int var25 = 0; var25 < var7; ++var25) {
-                    String customProperty = var8[var25];
-                    this.mapping.load(this.getClass().getResourceAsStream(customProperty));
+                try {
+                    this.mapping.load(customIS);
+                } finally {
+                    customIS.close();
                 }
-            } catch (IOException var22) {
-                throw new RuntimeException(var22);
-            }
-        } finally {
-            try {
-                is.close();
-            } catch (IOException var20) {
-                var20.printStackTrace();
             }
-
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-
     }
 
     public PropertyBoxParserImpl(Properties mapping) {
         this.mapping = mapping;
+        this.useDefaultRegistry = false;
     }
 
     public Box createBox(String type, byte[] userType, String parent) {
+        if (this.useDefaultRegistry) {
+            return this.createFromRegistry(type, userType, parent);
+        }
+
         this.invoke(type, userType, parent);
+        return this.newInstance(type, userType, parent);
+    }
+
+    private Box newInstance(String type, byte[] userType, String parent) {
         String[] param = (String[])this.param.get();
 
         try {
@@ -123,7 +111,59 @@ public class PropertyBoxParserImpl extends AbstractBoxParser {
         }
     }
 
-    public void invoke(String type, byte[] userType, String parent) {
+    private Box createFromRegistry(String type, byte[] userType, String parent) {
+        Box box;
+        if (userType != null) {
+            if (!"uuid".equals(type)) {
+                throw new RuntimeException("we have a userType but no uuid box type. Something's wrong");
+            }
+
+            String hex = Hex.encodeHex(userType).toUpperCase();
+            box = this.create("uuid[" + hex + "]", type, userType, parent);
+            if (box == null) {
+                box = this.create(parent + "-uuid[" + hex + "]", type, userType, parent);
+            }
+
+            if (box == null) {
+                box = this.create("uuid", type, userType, parent);
+            }
+        } else {
+            box = this.create(type, type, userType, parent);
+            if (box == null) {
+                String lookup = this.buildLookupStrings.append(parent).append('-').append(type).toString();
+                this.buildLookupStrings.setLength(0);
+                box = this.create(lookup, type, userType, parent);
+            }
+        }
+
+        if (box == null) {
+            box = this.create("default", type, userType, parent);
+        }
+
+        if (box == null) {
+            throw new RuntimeException("No box object found for " + type);
+        }
+        return box;
+    }
+
+    /**
+     * Creates the box mapped to key, from the custom properties if they have it, otherwise from the registry.
+     */
+    private Box create(String key, String type, byte[] userType, String parent) {
+        if (this.mapping != null) {
+            String constructor = this.mapping.getProperty(key);
+            if (constructor != null) {
+                this.parseConstructor(constructor);
+                return this.newInstance(type, userType, parent);
+            }
+        }
+        return DefaultBoxRegistry.create(key, type, userType, parent);
+    }
+
+    /**
+     * Looks up the constructor string in the properties mapping, without falling back to "default".
+     */
+    private String lookup(String type, byte[] userType, String parent) {
         String constructor;
         if (userType != null) {
             if (!"uuid".equals(type)) {
@@ -146,6 +186,11 @@ public class PropertyBoxParserImpl extends AbstractBoxParser {
                 constructor = this.mapping.getProperty(lookup);
             }
         }
+        return constructor;
+    }
+
+    public void invoke(String type, byte[] userType, String parent) {
+        String constructor = this.lookup(type, userType, parent);
 
         if (constructor == null) {
             constructor = this.mapping.getProperty("default");
@@ -154,24 +199,27 @@ public class PropertyBoxParserImpl extends AbstractBoxParser {
         if (constructor == null) {
             throw new RuntimeException("No box object found for " + type);
         } else {
-            if (!constructor.endsWith(")")) {
-                this.param.set(EMPTY_STRING_ARRAY);
-                this.clazzName.set(constructor);
-            } else {
-                Matcher m = this.constuctorPattern.matcher(constructor);
-                boolean matches = m.matches();
-                if (!matches) {
-                    throw new RuntimeException("Cannot work with that constructor: " + constructor);
-                }
+            this.parseConstructor(constructor);
+        }
+    }
 
-                this.clazzName.set(m.group(1));
-                if (m.group(2).length() == 0) {
-                    this.param.set(EMPTY_STRING_ARRAY);
-                } else {
-                    this.param.set(m.group(2).length() > 0 ? m.group(2).split(",") : new String[0]);
-                }
+    private void parseConstructor(String constructor) {
+        if (!constructor.endsWith(")")) {
+            this.param.set(EMPTY_STRING_ARRAY);
+            this.clazzName.set(constructor);
+        } else {
+            Matcher m = this.constuctorPattern.matcher(constructor);
+            boolean matches = m.matches();
+            if (!matches) {
+                throw new RuntimeException("Cannot work with that constructor: " + constructor);
             }
 
+            this.clazzName.set(m.group(1));
+            if (m.group(2).length() == 0) {
+                this.param.set(EMPTY_STRING_ARRAY);
+            } else {
+                this.param.set(m.group(2).length() > 0 ? m.group(2).split(",") : new String[0]);
+            }
         }
     }
 }
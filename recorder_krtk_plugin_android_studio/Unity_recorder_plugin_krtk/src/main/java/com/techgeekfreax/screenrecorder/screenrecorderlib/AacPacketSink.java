@@ -0,0 +1,16 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the raw AAC output of {@link MediaEncoder}: first the codec config buffer, then one
+ * call per encoded access unit. Buffers are read from their position to their limit and must
+ * not be kept after the call returns.
+ */
+public interface AacPacketSink {
+
+    void setCodecConfig(ByteBuffer csd) throws IOException;
+
+    void addSample(ByteBuffer buffer) throws IOException;
+}
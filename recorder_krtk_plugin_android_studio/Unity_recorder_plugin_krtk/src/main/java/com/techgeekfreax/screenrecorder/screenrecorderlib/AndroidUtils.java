@@ -1,12 +1,15 @@
 package com.techgeekfreax.screenrecorder.screenrecorderlib;
 
+import com.coremedia.iso.boxes.Box;
 import com.coremedia.iso.boxes.Container;
-import com.googlecode.mp4parser.FileDataSourceImpl;
 import com.googlecode.mp4parser.authoring.Movie;
 import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.builder.DefaultFragmenterImpl;
 import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
+import com.googlecode.mp4parser.authoring.builder.FragmentedMp4Builder;
+import com.googlecode.mp4parser.authoring.builder.Mp4Builder;
 import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
-import com.googlecode.mp4parser.authoring.tracks.AACTrackImpl;
+import com.googlecode.mp4parser.authoring.tracks.AppendTrack;
 import com.googlecode.mp4parser.authoring.tracks.CroppedTrack;
 import com.unity3d.player.UnityPlayer;
 import com.unity3d.player.UnityPlayerActivity;
@@ -18,8 +21,10 @@ import android.hardware.display.VirtualDisplay;
 import android.media.MediaRecorder;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Process;
 import android.provider.MediaStore;
 import android.util.DisplayMetrics;
 import android.widget.Toast;
@@ -29,10 +34,17 @@ import android.net.Uri;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class AndroidUtils extends UnityPlayerActivity {
 
@@ -44,6 +56,43 @@ public class AndroidUtils extends UnityPlayerActivity {
     private DisplayMetrics mDisplayMetrics;
     private String mFilePath, mFileName, mAppDir, mGameObject, mMethodName;
     private int mBitRate, mFps,screenWidth,screenHeight;
+    private DeviceCalibrator mCalibrator;
+    private volatile CalibrationProfile mCalibrationProfile;
+    private MemoryGovernor mMemoryGovernor;
+    private MixedAudioRecorder mAudioRecorder;
+    private boolean mMixAudio;
+    private float mGameGain = 1f, mMicGain;
+    private int mGameSampleRate = MediaEncoder.SAMPLE_RATE;
+    private boolean mJournaled;
+    private RecordingJournal mJournal;
+    private volatile File mVideoSegment, mNextVideoSegment;
+    private boolean mThumbnails;
+    private ThumbnailCache mThumbnailCache;
+    private ThumbnailGenerator mThumbnailGenerator;
+
+    // used until Unity calls setupVideo with a bitrate
+    private static final int DEFAULT_BIT_RATE = 4000000;
+    // rough heap cost of one sample in the merge: Sample objects plus the stbl tables
+    private static final int MERGE_BYTES_PER_SAMPLE = 64;
+    private static final long MAX_DEFER_MS = 60000;
+    private static final long DEFER_POLL_MS = 1000;
+    // a journaled recording finishes a complete mp4 segment every this many bytes, 32 s at 4 Mbit/s
+    private static final long SEGMENT_BYTES = 16 * 1024 * 1024;
+    private static final int THUMBNAIL_COUNT = 8;
+    private static final long THUMBNAIL_CACHE_BYTES = 16 * 1024 * 1024;
+
+    private final ExecutorService mPostProcessingQueue = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "PostProcessing");
+        }
+    });
 
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -53,6 +102,33 @@ public class AndroidUtils extends UnityPlayerActivity {
         this.mAppDir = Objects.requireNonNull(getApplicationContext().getExternalFilesDir(null)).getAbsolutePath();
 
         getWindowManager().getDefaultDisplay().getMetrics(this.mDisplayMetrics);
+
+        this.mCalibrator = new DeviceCalibrator(this.mAppDir);
+        this.mCalibrationProfile = this.mCalibrator.loadProfile();
+
+        this.mMemoryGovernor = new MemoryGovernor(Runtime.getRuntime().maxMemory() / 4);
+
+        // next to the recordings, in a hidden directory the media scanner does not list in the gallery
+        this.mThumbnailCache = new ThumbnailCache(new File(getOutputDir(), ".thumbnails"), THUMBNAIL_CACHE_BYTES);
+        this.mThumbnailGenerator = new ThumbnailGenerator(this.mThumbnailCache);
+
+        // sessions this process started or already recovers are claimed, so a recreated activity skips them
+        List<RecordingJournal> unfinished = RecordingJournal.findUnfinished(getSessionsDir());
+        if (!unfinished.isEmpty()) {
+            mPostProcessingQueue.execute(new RecoveryRunnable(unfinished));
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        this.mMemoryGovernor.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        this.mMemoryGovernor.onLowMemory();
     }
 
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -75,6 +151,97 @@ public class AndroidUtils extends UnityPlayerActivity {
         this.screenHeight=height;
         this.mBitRate = bitRate;
         this.mFps = fps;
+
+        CalibrationProfile profile = this.mCalibrationProfile;
+        if (profile != null) {
+            // keep the requested fps and capture smaller, the virtual display scales the screen into it
+            int[] size = profile.sustainableSize(width, height, fps);
+            if (size[0] != width || size[1] != height) {
+                Log.w("ANDROID_UTILS", "encoder does not sustain " + width + "x" + height + "@" + fps + ", capturing at " + size[0] + "x" + size[1]);
+                this.screenWidth = size[0];
+                this.screenHeight = size[1];
+            }
+            // the size stops shrinking at 16 pixels, anything still too fast is capped by the fps
+            int sustainableFps = profile.sustainableFps(this.screenWidth, this.screenHeight, fps);
+            if (sustainableFps < fps) {
+                Log.w("ANDROID_UTILS", "encoder only sustains about " + sustainableFps + " fps for " + this.screenWidth + "x" + this.screenHeight + "@" + fps);
+                this.mFps = sustainableFps;
+            }
+            if (bitRate > profile.getMaxBitRate()) {
+                this.mBitRate = profile.getMaxBitRate();
+            }
+        }
+    }
+
+    public void calibrateDevice() {    //this func is used by Unity side to run the encoder calibration once per device model, sends FLAG_CalibrationDone when finished
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mCalibrationProfile = mCalibrator.calibrate(mDisplayMetrics.widthPixels, mDisplayMetrics.heightPixels);
+                UnityPlayer.UnitySendMessage(mGameObject, mMethodName, "FLAG_CalibrationDone");
+            }
+        }).start();
+    }
+
+    public String getRecommendedVideo(int quality) {    //this func returns "width,height,bitRate,fps" for CalibrationProfile.QUALITY_*, or null if the device is not calibrated
+
+        CalibrationProfile profile = this.mCalibrationProfile;
+        if (profile == null) {
+            return null;
+        }
+        CalibrationProfile.Entry entry = profile.recommend(quality);
+        return entry != null ? entry.toString() : null;
+    }
+
+    public void setupAudio(float gameGain, float micGain, int sampleRate) {    //this func is used by Unity side to record the game audio live, with the mic mixed in when micGain > 0. sampleRate is AudioSettings.outputSampleRate. Without it sound.wav is used
+
+        if (sampleRate <= 0) {
+            Log.e("ANDROID_UTILS", "invalid game audio sample rate " + sampleRate + ", using sound.wav");
+            return;
+        }
+        this.mMixAudio = true;
+        this.mGameGain = gameGain;
+        this.mMicGain = micGain;
+        this.mGameSampleRate = sampleRate;
+        if (this.mAudioRecorder != null) {
+            this.mAudioRecorder.setGameGain(gameGain);
+            this.mAudioRecorder.setMicGain(micGain);
+        }
+    }
+
+    public void writeGameAudio(float[] data, int channels) {    //this func is used by Unity side to pass the game audio from OnAudioFilterRead while recording
+
+        MixedAudioRecorder audioRecorder = this.mAudioRecorder;
+        if (audioRecorder != null) {
+            audioRecorder.writeGameAudio(data, channels);
+        }
+    }
+
+    public void setJournaled(boolean journaled) {    //this func is used by Unity side to keep the session in segments and checkpoints, so it can be recovered after a crash
+
+        this.mJournaled = journaled;
+    }
+
+    public void setThumbnails(boolean enabled) {    //this func is used by Unity side to create a thumbnail and a preview strip of every recording during the merge, sends FLAG_ThumbnailsReady when they are cached
+
+        this.mThumbnails = enabled;
+    }
+
+    public String getThumbnail(String videoPath) {    //this func returns the cached thumbnail jpg of a recording, or null if there is none, without opening the video
+
+        File thumbnail = this.mThumbnailCache.getThumbnail(new File(videoPath));
+        return thumbnail != null ? thumbnail.getAbsolutePath() : null;
+    }
+
+    public String getPreviewStrip(String videoPath) {    //this func returns the cached preview strip jpg of a recording (THUMBNAIL_COUNT keyframes side by side), or null if there is none
+
+        File strip = this.mThumbnailCache.getStrip(new File(videoPath));
+        return strip != null ? strip.getAbsolutePath() : null;
+    }
+
+    private File getSessionsDir() {
+        return new File(this.mAppDir, "sessions");
     }
 
     public void setFileName(String fileName) {    //this func is used by Unity side to set video name
@@ -106,12 +273,52 @@ public class AndroidUtils extends UnityPlayerActivity {
         mRecorder.setVideoSource(2);
         mRecorder.setOutputFormat(2);
         mRecorder.setVideoEncoder(2);
-        mRecorder.setOutputFile(this.mFilePath);
+        if (this.mJournaled) {
+            this.mJournal = RecordingJournal.begin(getSessionsDir());
+            this.mVideoSegment = this.mJournal.nextVideoSegment();
+            mRecorder.setOutputFile(this.mVideoSegment.getAbsolutePath());
+        } else {
+            mRecorder.setOutputFile(this.mFilePath);
+        }
         mRecorder.setVideoSize(screenWidth, screenHeight);
         mRecorder.setVideoFrameRate(this.mFps);
-        mRecorder.setVideoEncodingBitRate(4000000);     //1000000
+        mRecorder.setVideoEncodingBitRate(this.mBitRate > 0 ? this.mBitRate : DEFAULT_BIT_RATE);
+        if (this.mJournal != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            startSegmentedOutput();
+        }
         mRecorder.prepare();
         mRecorder.start();
+
+        if (this.mMixAudio) {
+            this.mAudioRecorder = new MixedAudioRecorder(this.mGameGain, this.mMicGain, this.mGameSampleRate, this.mMemoryGovernor);
+            if (this.mJournal != null) {
+                this.mAudioRecorder.setJournal(this.mJournal.getAudioFile(), this.mJournal.getAudioIndexFile());
+            }
+            this.mAudioRecorder.start();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void startSegmentedOutput() {    //this func makes the recorder finish a complete mp4 every SEGMENT_BYTES, so a crash only loses the current segment. Below API 26 the whole video is one segment
+
+        final RecordingJournal journal = this.mJournal;
+        mRecorder.setMaxFileSize(SEGMENT_BYTES);
+        mRecorder.setOnInfoListener(new MediaRecorder.OnInfoListener() {
+            @Override
+            public void onInfo(MediaRecorder mr, int what, int extra) {
+                try {
+                    if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING) {
+                        mNextVideoSegment = journal.nextVideoSegment();
+                        mr.setNextOutputFile(mNextVideoSegment);
+                    } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED) {
+                        journal.segmentFinished(mVideoSegment);
+                        mVideoSegment = mNextVideoSegment;
+                    }
+                } catch (IOException e) {
+                    Log.e("ANDROID_UTILS", "could not switch to the next video segment", e);
+                }
+            }
+        });
     }
 
     private void shareScreen() {    //this func init thr ProjectionManager to create a virtual Display and start record screen
@@ -203,83 +410,228 @@ public class AndroidUtils extends UnityPlayerActivity {
     }
 
     public void convertToAAC(String wavPath){
+        convertToAAC(wavPath, this.mAppDir + "/visual.mp4");
+    }
+
+    private void convertToAAC(String wavPath, String visualPath){    //this func encodes the wav and merges it with the video at visualPath
+        Track audioTrack = encodeAudio(wavPath, this.mAppDir + "/sound.m4a");
+        if (audioTrack == null) {
+            return;
+        }
+
+        File outputFile = createOutputFile(".mp4");
+
+        mergeClips(visualPath,audioTrack,outputFile);
+    }
+
+    private Track encodeAudio(String wavPath, String m4aPath){    //this func encodes the wav for the merge, into m4aPath instead of the heap when memory is short. Returns null on failure
         Log.e("ANDROID_UTILS_NATIVE",wavPath);
         MediaEncoder aacEncoder = new MediaEncoder();
-        aacEncoder.encode(wavPath);
+        aacEncoder.setMemoryGovernor(this.mMemoryGovernor);
+        aacEncoder.setWriteAdts(false);
+
+        Track audioTrack;
+        if (this.mMemoryGovernor.useLowMemoryMerge()) {
+            // keep the encoded audio on disk instead of the heap, the merge reads it back lazily
+            if (!aacEncoder.exportM4a(wavPath, m4aPath)) {
+                Log.e("ANDROID_UTILS_NATIVE", "no audio encoded from " + wavPath);
+                return null;
+            }
+            try {
+                audioTrack = MovieCreator.build(m4aPath).getTracks().get(0);
+            } catch (IOException e) {
+                Log.e("ANDROID_UTILS_NATIVE", "could not read " + m4aPath, e);
+                return null;
+            }
+        } else {
+            audioTrack = aacEncoder.encode(wavPath) ? aacEncoder.getTrack() : null;
+            if (audioTrack == null) {
+                Log.e("ANDROID_UTILS_NATIVE", "no audio encoded from " + wavPath);
+                return null;
+            }
+        }
+        return audioTrack;
+    }
 
+    public void exportAudio(String wavPath){    //this func is used by Unity side to save audio only, as a fast-start m4a without the video merge
+
+        File outputFile = createOutputFile(".m4a");
+        MediaEncoder aacEncoder = new MediaEncoder();
+        if (aacEncoder.exportM4a(wavPath, outputFile.getAbsolutePath())) {
+            refreshGallery(outputFile.getAbsolutePath());
+        }
+    }
+
+    private File getOutputDir(){
+        return new File(Environment.getExternalStorageDirectory().getAbsolutePath() + "/Pikamoji_Moments");
+    }
+
+    private File createOutputFile(String extension){
         //Create a new unique file
-        File theDir = new File(Environment.getExternalStorageDirectory().getAbsolutePath() + "/Pikamoji_Moments");
+        File theDir = getOutputDir();
         if (!theDir.exists())
             theDir.mkdirs();
-        Log.e("ANDROID_UTILS_NATIVE",Environment.getExternalStorageDirectory().getAbsolutePath() + "/Pikamoji_Moments");
+        Log.e("ANDROID_UTILS_NATIVE",theDir.getAbsolutePath());
         int i=0;
-        String outputFilePath = Environment.getExternalStorageDirectory().getAbsolutePath() + "/Pikamoji_Moments" + "/pikamoji_record";
+        String outputFilePath = theDir.getAbsolutePath() + "/pikamoji_record";
 
-        File outputFile = new File(outputFilePath + i + ".mp4");
+        File outputFile = new File(outputFilePath + i + extension);
         while(outputFile.exists()) {
             i++;
-            outputFile = new File(outputFilePath + i + ".mp4");
+            outputFile = new File(outputFilePath + i + extension);
         }
-
-        mergeClips(this.mAppDir + "/visual.mp4",this.mAppDir+"/sound.aac",outputFile);
+        return outputFile;
     }
 
-    private void mergeClips(String visual,String sound, File outputFile){
-        try {
-            /* Load a MP4 file as movie */
-            Movie movieVideo = MovieCreator.build(visual);
-            Track videoTrack = movieVideo.getTracks().get(0);
+    private void mergeClips(String visual,Track audioTrack, File outputFile){
+        mergeClips(Collections.singletonList(new File(visual)), audioTrack, false, outputFile);
+    }
 
-            /* Fetch needed audio track and video track from MP4 file */
-            Track audioTrack = new AACTrackImpl(new FileDataSourceImpl(sound));
-            Log.e("ANDROID_UTILS",audioTrack.toString());
+    private Track loadVideoTrack(List<File> videoSegments) throws IOException {    //this func loads the video, appending the segments of a journaled session into one track
 
-            double t1 = 1.0 * videoTrack.getDuration() / videoTrack.getTrackMetaData().getTimescale();
-            double t2 = 1.0 * audioTrack.getDuration() / audioTrack.getTrackMetaData().getTimescale();
-            Log.d("First log", t1 + " " + t2);
+        List<Track> tracks = new ArrayList<>();
+        try {
+            for (File segment : videoSegments) {
+                tracks.add(MovieCreator.build(segment.getAbsolutePath()).getTracks().get(0));
+            }
+        } catch (IOException e) {
+            for (Track track : tracks) {
+                closeTrack(track);
+            }
+            throw e;
+        }
+        if (tracks.size() == 1) {
+            return tracks.get(0);
+        }
+        return new AppendTrack(tracks.toArray(new Track[tracks.size()]));
+    }
 
-            double factor = (t1 * audioTrack.getTrackMetaData().getTimescale()) / audioTrack.getDuration();
-            Log.d("Second log", "factor = " + factor);
+    private boolean mergeClips(List<File> videoSegments,Track audioTrack, boolean audioStartsWithVideo, File outputFile){    //audioTrack may be null, then only the video is written. audioStartsWithVideo keeps the start of a longer audio instead of its end. Closes audioTrack. Returns false if nothing was written
+        Track videoTrack = null;
+        try {
+            /* Load the MP4 segments as one track */
+            videoTrack = loadVideoTrack(videoSegments);
 
             /* Construct a movie */
             Movie movie = new Movie();
-            if (factor < 1.0) {
-                long trackSize = audioTrack.getSamples().size();
-                long sampleNeeded = (long) (trackSize * factor);
-
-                Log.d("Third log", (trackSize - sampleNeeded - 1) + " " + trackSize);
-
+            if (audioTrack == null) {
+                Log.w("ANDROID_UTILS", "no audio, writing the video only");
+                this.mMemoryGovernor.setUsage(MemoryGovernor.USAGE_MERGE, (long) videoTrack.getSamples().size() * MERGE_BYTES_PER_SAMPLE);
                 movie.addTrack(videoTrack);
-                movie.addTrack(new CroppedTrack(audioTrack, trackSize - sampleNeeded - 1, trackSize));
             } else {
-                Log.d("Fourth log", "mergeMP4withAAC 1");
-                long trackSize = videoTrack.getSamples().size();
-                long sampleNeeded = (long) (trackSize / factor);
-                movie.addTrack(new CroppedTrack(videoTrack, trackSize - sampleNeeded - 1, trackSize));
-                Log.d("Fifth log", "mergeMP4withAAC 2");
-                movie.addTrack(audioTrack);
-                Log.d("Sixth log", "mergeMP4withAAC 3");
+                Log.e("ANDROID_UTILS",audioTrack.toString());
+
+                double t1 = 1.0 * videoTrack.getDuration() / videoTrack.getTrackMetaData().getTimescale();
+                double t2 = 1.0 * audioTrack.getDuration() / audioTrack.getTrackMetaData().getTimescale();
+                Log.d("First log", t1 + " " + t2);
+
+                double factor = (t1 * audioTrack.getTrackMetaData().getTimescale()) / audioTrack.getDuration();
+                Log.d("Second log", "factor = " + factor);
+
+                this.mMemoryGovernor.setUsage(MemoryGovernor.USAGE_MERGE,
+                        (long) (videoTrack.getSamples().size() + audioTrack.getSamples().size()) * MERGE_BYTES_PER_SAMPLE);
+
+                if (factor < 1.0) {
+                    long trackSize = audioTrack.getSamples().size();
+                    long sampleNeeded = (long) (trackSize * factor);
+
+                    Log.d("Third log", (trackSize - sampleNeeded - 1) + " " + trackSize);
+
+                    movie.addTrack(videoTrack);
+                    if (audioStartsWithVideo) {
+                        movie.addTrack(new CroppedTrack(audioTrack, 0, sampleNeeded));
+                    } else {
+                        movie.addTrack(new CroppedTrack(audioTrack, trackSize - sampleNeeded - 1, trackSize));
+                    }
+                } else {
+                    Log.d("Fourth log", "mergeMP4withAAC 1");
+                    long trackSize = videoTrack.getSamples().size();
+                    long sampleNeeded = (long) (trackSize / factor);
+                    movie.addTrack(new CroppedTrack(videoTrack, trackSize - sampleNeeded - 1, trackSize));
+                    Log.d("Fifth log", "mergeMP4withAAC 2");
+                    movie.addTrack(audioTrack);
+                    Log.d("Sixth log", "mergeMP4withAAC 3");
+                }
+            }
+
+            /* Pick the keyframes for the thumbnails now, while the video track is loaded anyway */
+            VideoKeyframes keyframes = null;
+            if (this.mThumbnails) {
+                for (Track track : movie.getTracks()) {
+                    if ("vide".equals(track.getHandler())) {
+                        try {
+                            keyframes = VideoKeyframes.pick(track, THUMBNAIL_COUNT);
+                        } catch (RuntimeException e) {
+                            // thumbnails are optional, the merge must not fail because of them
+                            Log.w("ANDROID_UTILS", "could not pick keyframes: " + e);
+                        }
+                    }
+                }
             }
 
-            /* Build it */
-            Container mp4file = new DefaultMp4Builder().build(movie);
+            /* Build it, fragmented when memory is short so the sample tables are built per fragment */
+            Mp4Builder builder;
+            if (this.mMemoryGovernor.useLowMemoryMerge()) {
+                Log.d("ANDROID_UTILS", "merging in low memory mode");
+                FragmentedMp4Builder fragmentedBuilder = new FragmentedMp4Builder();
+                fragmentedBuilder.setFragmenter(new DefaultFragmenterImpl(2));
+                builder = fragmentedBuilder;
+            } else {
+                builder = new DefaultMp4Builder();
+            }
+            Container mp4file = builder.build(movie);
             Log.d("Seventh", "mergeMP4withAAC 4");
-            /* Write resulted MP4 to file */
-            FileChannel fc = new FileOutputStream(outputFile).getChannel();
+            /* Write resulted MP4 to file, the box sizes add up to the file size so it can be preallocated */
+            long expectedSize = 0;
+            for (Box box : mp4file.getBoxes()) {
+                expectedSize += box.getSize();
+            }
+            OutputSink sink = new WriteBehindOutputSink(outputFile, expectedSize);
             Log.d("Eighth", "mergeMP4withAAC 5 " + mp4file.getBoxes().size());
-            mp4file.writeContainer(fc); // the problem I guess may be here
-            Log.d("Ninth", "mergeMP4withAAC 6");
-            fc.close();
-            Log.d("Tenth", "mergeMP4withAAC 7");
+            try {
+                mp4file.writeContainer(sink);
+                Log.d("Ninth", "mergeMP4withAAC 6");
+            } finally {
+                sink.close();
+            }
+            Log.d("Tenth", "mergeMP4withAAC 7 " + sink.getStats());
+
+            if (keyframes != null) {
+                this.mThumbnailGenerator.submit(outputFile, keyframes, new ThumbnailGenerator.Listener() {
+                    @Override
+                    public void onThumbnailsReady(File video) {
+                        if (mGameObject != null) {
+                            UnityPlayer.UnitySendMessage(mGameObject, mMethodName, "FLAG_ThumbnailsReady");
+                        }
+                    }
+                });
+            }
 
             //Toast.makeText(this, "Video is saved to gallery", Toast.LENGTH_SHORT).show();
 
             refreshGallery(outputFile.getAbsolutePath());
+            return true;
         } catch (Exception e) {
             Log.e("YOUR_APP_LOG_TAG", "I got an error", e);
             //Toast.makeText(this, "Failed to save video", Toast.LENGTH_SHORT).show();
+            return false;
+        } finally {
+            this.mMemoryGovernor.setUsage(MemoryGovernor.USAGE_MERGE, 0);
+            this.mMemoryGovernor.setUsage(MemoryGovernor.USAGE_ENCODER, 0);
+            // tracks read with MovieCreator keep their file open until closed
+            closeTrack(videoTrack);
+            closeTrack(audioTrack);
+        }
+    }
+
+    private void closeTrack(Track track) {
+        if (track != null) {
+            try {
+                track.close();
+            } catch (IOException e) {
+                Log.e("ANDROID_UTILS", "could not close " + track, e);
+            }
         }
-        //return outputFile.exists();
     }
 
     public void refreshGallery(String filePath){
@@ -293,7 +645,9 @@ public class AndroidUtils extends UnityPlayerActivity {
                     }
                 });
 
-        UnityPlayer.UnitySendMessage(this.mGameObject, this.mMethodName, filePath);
+        if (this.mGameObject != null) {    // a session recovered at launch can finish before Unity set the callback
+            UnityPlayer.UnitySendMessage(this.mGameObject, this.mMethodName, filePath);
+        }
     }
 
     class StopRecorderRunnable implements Runnable{
@@ -309,8 +663,241 @@ public class AndroidUtils extends UnityPlayerActivity {
             mRecorder.release();
             mRecorder = null;
 
-            convertToAAC(mAppDir + "/sound.wav");
+            Track mixedAudio = null;
+            if (mAudioRecorder != null) {
+                mixedAudio = mAudioRecorder.stop();
+                mAudioRecorder = null;
+            }
+
+            RecordingJournal journal = mJournal;
+            mJournal = null;
+            if (journal != null) {
+                File wav = new File(mAppDir + "/sound.wav");
+                if (mixedAudio == null && wav.renameTo(journal.getWavFile())) {
+                    // keep the wav with the session before it counts as stopped, so neither the next
+                    // recording nor a crash before the merge can lose it
+                    Log.d("ANDROID_UTILS", "moved " + wav + " into " + journal);
+                }
+                try {
+                    journal.segmentFinished(mVideoSegment);
+                    journal.stopped();
+                } catch (IOException e) {
+                    Log.e("ANDROID_UTILS", "could not update the journal of " + journal, e);
+                }
+            }
+
+            String wavPath = mAppDir + "/sound.wav";
+            String visualPath = mAppDir + "/visual.mp4";
+            if (journal == null) {
+                // the merge may be deferred past the start of the next recording, which overwrites the shared files
+                String suffix = "_" + System.currentTimeMillis();
+                if (mixedAudio == null) {
+                    wavPath = takeInput(wavPath, suffix);
+                }
+                visualPath = takeInput(visualPath, suffix);
+            }
+            mPostProcessingQueue.execute(new PostProcessingRunnable(wavPath, visualPath, mixedAudio, journal));
             //UnityPlayer.UnitySendMessage(mGameObject, mMethodName, "FLAG_VideoSaved");
         }
     }
+
+    private String takeInput(String sharedPath, String suffix) {    //this func renames a shared post processing input to a name of its own. Returns the new path, or sharedPath if it could not be renamed
+
+        File shared = new File(sharedPath);
+        String name = shared.getName();
+        int dot = name.lastIndexOf('.');
+        File taken = new File(shared.getParentFile(), name.substring(0, dot) + suffix + name.substring(dot));
+        if (!shared.renameTo(taken)) {
+            Log.w("ANDROID_UTILS", "could not move " + shared + " out of the way of the next recording");
+            return sharedPath;
+        }
+        return taken.getAbsolutePath();
+    }
+
+    private void deleteTakenInput(String path) {    //this func removes an input renamed by takeInput once it is merged, the shared files are left to be overwritten
+
+        if (path.equals(mAppDir + "/sound.wav") || path.equals(mAppDir + "/visual.mp4")) {
+            return;
+        }
+        File file = new File(path);
+        if (file.exists() && !file.delete()) {
+            Log.w("ANDROID_UTILS", "could not delete " + file);
+        }
+    }
+
+    class PostProcessingRunnable implements Runnable{    //runs the encode and merge on the low priority queue, waiting while memory is critical
+        private final String wavPath;
+        private final String visualPath;
+        private final Track mixedAudio;
+        private final RecordingJournal journal;
+
+        PostProcessingRunnable(String wavPath, String visualPath, Track mixedAudio, RecordingJournal journal) {    //mixedAudio is the live recorded track, or null to encode the wav. journal is set for journaled sessions, which keep their own inputs
+            this.wavPath = wavPath;
+            this.visualPath = visualPath;
+            this.mixedAudio = mixedAudio;
+            this.journal = journal;
+        }
+
+        @Override
+        public void run(){
+            long waited = 0;
+            while (mMemoryGovernor.shouldDeferPostProcessing() && waited < MAX_DEFER_MS) {
+                try {
+                    Thread.sleep(DEFER_POLL_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                waited += DEFER_POLL_MS;
+            }
+            if (waited > 0) {
+                Log.d("ANDROID_UTILS", "post processing deferred for " + waited + " ms");
+            }
+            if (journal != null) {
+                finishSession(journal, mixedAudio);
+                return;
+            }
+            if (mixedAudio != null) {
+                mergeClips(Collections.singletonList(new File(visualPath)), mixedAudio, true, createOutputFile(".mp4"));
+            } else {
+                convertToAAC(wavPath, visualPath);
+            }
+            // without a journal there is no retry, so the inputs go either way
+            deleteTakenInput(wavPath);
+            deleteTakenInput(visualPath);
+        }
+    }
+
+    private void finishSession(RecordingJournal journal, Track audioTrack) {    //this func merges a journaled session and removes its intermediates once the result is written. audioTrack is the live recorded track, or null to read the audio from the session
+
+        boolean audioStartsWithVideo = true;
+        if (audioTrack == null) {
+            File audioFile = journal.getAudioFile();
+            File wav = journal.getWavFile();
+            if (audioFile.exists()) {
+                audioTrack = loadSessionAudio(journal);
+            } else if (wav.exists()) {
+                audioTrack = encodeAudio(wav.getAbsolutePath(), new File(journal.getDirectory(), "sound.m4a").getAbsolutePath());
+                audioStartsWithVideo = false;
+            }
+            if (audioTrack == null && (audioFile.exists() || wav.exists())) {
+                // a video without its audio is no result, keep the session so the next launch can try again
+                Log.e("ANDROID_UTILS", "could not read the audio of " + journal + ", keeping the session");
+                return;
+            }
+        }
+
+        File outputFile = journal.getOutput();
+        if (outputFile == null) {
+            outputFile = createOutputFile(".mp4");
+            try {
+                journal.setOutput(outputFile);
+            } catch (IOException e) {
+                Log.e("ANDROID_UTILS", "could not update the journal of " + journal, e);
+            }
+        }
+
+        if (mergeClips(journal.getVideoSegments(), audioTrack, audioStartsWithVideo, outputFile)) {
+            journal.complete();
+        }
+    }
+
+    private Track loadSessionAudio(RecordingJournal journal) {    //this func reads the live recorded audio of a session, finishing the file first if the recording was interrupted. Returns null on failure
+
+        File audioFile = journal.getAudioFile();
+        try {
+            if (RecordingJournal.STATE_RECORDING.equals(journal.getState())) {
+                // the audio was never finished, rebuild its moov from the checkpoint index
+                if (!M4aWriter.recover(audioFile, journal.getAudioIndexFile())) {
+                    return null;
+                }
+            }
+            return MovieCreator.build(audioFile.getAbsolutePath()).getTracks().get(0);
+        } catch (Exception e) {
+            Log.e("ANDROID_UTILS", "could not recover the audio of " + journal, e);
+            return null;
+        }
+    }
+
+    private boolean exportSessionAudio(RecordingJournal journal) {    //this func saves the audio of a session without usable video as an m4a. Returns false, so the session is kept, if there is audio that could not be saved
+
+        File audioFile = journal.getAudioFile();
+        File wav = journal.getWavFile();
+        if (!audioFile.exists() && !wav.exists()) {
+            Log.w("ANDROID_UTILS", "no audio in " + journal + " either, nothing to recover");
+            return true;
+        }
+
+        File outputFile = journal.getOutput();
+        if (outputFile == null) {
+            outputFile = createOutputFile(".m4a");
+            try {
+                journal.setOutput(outputFile);
+            } catch (IOException e) {
+                Log.e("ANDROID_UTILS", "could not update the journal of " + journal, e);
+            }
+        }
+
+        if (audioFile.exists()) {
+            // finishes the file if needed and makes sure it can be read before it is published
+            if (loadSessionAudio(journal) == null) {
+                Log.e("ANDROID_UTILS", "could not read the audio of " + journal + ", keeping the session");
+                return false;
+            }
+            try {
+                copyFile(audioFile, outputFile);
+            } catch (IOException e) {
+                Log.e("ANDROID_UTILS", "could not copy the audio of " + journal + " to " + outputFile, e);
+                return false;
+            }
+        } else if (!new MediaEncoder().exportM4a(wav.getAbsolutePath(), outputFile.getAbsolutePath())) {
+            Log.e("ANDROID_UTILS", "could not encode the audio of " + journal + ", keeping the session");
+            return false;
+        }
+        refreshGallery(outputFile.getAbsolutePath());
+        return true;
+    }
+
+    private static void copyFile(File from, File to) throws IOException {
+        FileChannel in = new FileInputStream(from).getChannel();
+        try {
+            FileChannel out = new FileOutputStream(to).getChannel();
+            try {
+                long position = 0;
+                long size = in.size();
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    class RecoveryRunnable implements Runnable{    //finishes the sessions that were interrupted by a crash, from their finished segments and checkpoints
+        private final List<RecordingJournal> journals;
+
+        RecoveryRunnable(List<RecordingJournal> journals) {
+            this.journals = journals;
+        }
+
+        @Override
+        public void run(){
+            for (RecordingJournal journal : journals) {
+                Log.d("ANDROID_UTILS", "recovering " + journal);
+                if (journal.getVideoSegments().isEmpty()) {
+                    // the recorder writes moov only when a segment ends, an unfinished segment cannot be read.
+                    // Below API 26 that is the whole video, but the audio is still worth saving
+                    Log.w("ANDROID_UTILS", "no finished video segment in " + journal + ", recovering its audio only");
+                    if (exportSessionAudio(journal)) {
+                        journal.complete();
+                    }
+                    continue;
+                }
+                finishSession(journal, null);
+            }
+        }
+    }
 }
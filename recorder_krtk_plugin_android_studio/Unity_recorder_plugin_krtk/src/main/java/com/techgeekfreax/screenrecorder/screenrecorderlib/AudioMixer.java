@@ -0,0 +1,347 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mixes N live PCM sources (e.g. microphone and game audio) into one 16 bit interleaved stream.
+ * Every source pushes into its own {@link Input} from its own thread; {@link #mix(short[])} pulls
+ * one block from each input, applies the input gain and soft clips the sum.
+ * Sources run on their own clocks, so each input keeps about TARGET_BLOCKS blocks buffered: if the
+ * buffer slowly fills up (the source is faster than the mixer) the block is read with a couple of
+ * extra frames and squeezed back to block size, if it drains the block is stretched. The buffered
+ * amount is also the latency the input adds, see {@link Input#getLatencyMs()}.
+ * An input may run at another sample rate than the mixer, e.g. Unity's output rate; it is then
+ * read with the matching number of frames per block and resampled in the same pass.
+ * All buffers are allocated up front, mixing a block does not allocate. No Android dependencies,
+ * so the mixer can be benchmarked on the JVM.
+ */
+public class AudioMixer {
+
+    // keep this many blocks buffered per input, enough to ride out scheduling jitter
+    private static final int TARGET_BLOCKS = 2;
+    private static final int RING_BLOCKS = 16;
+
+    // weight of a new fill level measurement in the smoothed fill
+    private static final float FILL_SMOOTHING = 0.05f;
+
+    // below this the signal passes unchanged, above it is bent towards full scale
+    private static final float CLIP_KNEE = 0.8f;
+
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final int mBlockFrames;
+    private final int mMaxCorrection;
+
+    private final List<Input> mInputs = new ArrayList<>();
+    private final float[] mAccumulator;
+    private long mBlocksMixed;
+
+    /**
+     * @param blockFrames frames per mixed block, i.e. per call to {@link #mix(short[])}
+     */
+    public AudioMixer(int sampleRate, int channelCount, int blockFrames) {
+        this.mSampleRate = sampleRate;
+        this.mChannelCount = channelCount;
+        this.mBlockFrames = blockFrames;
+        // at most 0.2% faster or slower, well above the drift of real clocks and not audible
+        this.mMaxCorrection = Math.max(1, blockFrames / 512);
+        this.mAccumulator = new float[blockFrames * channelCount];
+    }
+
+    /**
+     * Adds a source at the mixer's sample rate. Inputs must be added before mixing starts.
+     */
+    public synchronized Input addInput(String name, float gain) {
+        return addInput(name, gain, mSampleRate);
+    }
+
+    /**
+     * Adds a source that delivers sampleRate frames per second. Inputs must be added before mixing starts.
+     */
+    public synchronized Input addInput(String name, float gain, int sampleRate) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("sample rate " + sampleRate + " of " + name);
+        }
+        Input input = new Input(name, gain, sampleRate);
+        mInputs.add(input);
+        return input;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getBlockFrames() {
+        return mBlockFrames;
+    }
+
+    public long getBlocksMixed() {
+        return mBlocksMixed;
+    }
+
+    /**
+     * Mixes one block of getBlockFrames() frames into out, which must hold at least
+     * blockFrames * channelCount samples. Inputs without data contribute silence.
+     */
+    public synchronized void mix(short[] out) {
+        float[] acc = mAccumulator;
+        Arrays.fill(acc, 0f);
+
+        for (int i = 0, n = mInputs.size(); i < n; i++) {
+            mInputs.get(i).mixInto(acc);
+        }
+
+        for (int i = 0; i < acc.length; i++) {
+            out[i] = (short) (softClip(acc[i]) * Short.MAX_VALUE);
+        }
+        mBlocksMixed++;
+    }
+
+    /**
+     * Returns true once every input is finished and has no more buffered data.
+     */
+    public synchronized boolean isDrained() {
+        for (int i = 0, n = mInputs.size(); i < n; i++) {
+            Input input = mInputs.get(i);
+            if (!input.mFinished || input.getBufferedFrames() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps [-inf, inf] to [-1, 1]: linear up to CLIP_KNEE, then a tanh curve that approaches full
+     * scale, so loud peaks are compressed instead of wrapping or hard clipping.
+     */
+    static float softClip(float x) {
+        float magnitude = Math.abs(x);
+        if (magnitude <= CLIP_KNEE) {
+            return x;
+        }
+        float range = 1f - CLIP_KNEE;
+        float bent = CLIP_KNEE + range * (float) Math.tanh((magnitude - CLIP_KNEE) / range);
+        return x < 0 ? -bent : bent;
+    }
+
+    /**
+     * One source of the mix. write() is called by the source thread, the mixer reads on its own
+     * thread; the ring buffer has a single writer and a single reader and needs no locking.
+     */
+    public class Input {
+
+        private final String mName;
+        private final int mInputRate;
+        private final double mRateRatio;    // input frames per mixer frame
+        private final int mInputBlockFrames;
+        private final short[] mRing;
+        private final int mRingFrames;
+
+        private volatile float mGain;
+        private volatile long mWritten;    // frames, advanced by the writer
+        private volatile long mRead;       // frames, advanced by the mixer
+        private volatile boolean mFinished;
+
+        // writer side
+        private long mOverrunFrames;
+
+        // mixer side
+        private boolean mStarted;
+        private double mPhase;    // fraction of an input frame carried to the next block
+        private float mSmoothedFill;
+        private long mCorrectionFrames;
+        private long mUnderrunFrames;
+
+        Input(String name, float gain, int sampleRate) {
+            this.mName = name;
+            this.mGain = gain;
+            this.mInputRate = sampleRate;
+            this.mRateRatio = (double) sampleRate / mSampleRate;
+            this.mInputBlockFrames = (int) Math.ceil(mBlockFrames * mRateRatio);
+            this.mRingFrames = mInputBlockFrames * RING_BLOCKS;
+            this.mRing = new short[mRingFrames * mChannelCount];
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void setGain(float gain) {
+            this.mGain = gain;
+        }
+
+        public float getGain() {
+            return mGain;
+        }
+
+        public int getSampleRate() {
+            return mInputRate;
+        }
+
+        /**
+         * Appends frames of 16 bit interleaved PCM with srcChannels channels. Mono is spread to
+         * all mixer channels and extra channels are dropped. If the mixer fell behind and the
+         * buffer is full the newest frames are dropped.
+         */
+        public void write(short[] src, int offset, int frames, int srcChannels) {
+            int free = mRingFrames - (int) (mWritten - mRead);
+            if (frames > free) {
+                mOverrunFrames += frames - free;
+                frames = free;
+            }
+            long written = mWritten;
+            for (int f = 0; f < frames; f++) {
+                int dst = (int) ((written + f) % mRingFrames) * mChannelCount;
+                int in = offset + f * srcChannels;
+                for (int c = 0; c < mChannelCount; c++) {
+                    mRing[dst + c] = src[in + (c < srcChannels ? c : 0)];
+                }
+            }
+            mWritten = written + frames;
+        }
+
+        /**
+         * Same as {@link #write(short[], int, int, int)} for float PCM in [-1, 1], as delivered by Unity.
+         */
+        public void write(float[] src, int offset, int frames, int srcChannels) {
+            int free = mRingFrames - (int) (mWritten - mRead);
+            if (frames > free) {
+                mOverrunFrames += frames - free;
+                frames = free;
+            }
+            long written = mWritten;
+            for (int f = 0; f < frames; f++) {
+                int dst = (int) ((written + f) % mRingFrames) * mChannelCount;
+                int in = offset + f * srcChannels;
+                for (int c = 0; c < mChannelCount; c++) {
+                    float sample = src[in + (c < srcChannels ? c : 0)];
+                    sample = Math.max(-1f, Math.min(1f, sample));
+                    mRing[dst + c] = (short) (sample * Short.MAX_VALUE);
+                }
+            }
+            mWritten = written + frames;
+        }
+
+        /**
+         * No more data will be written; the rest of the buffer is still mixed.
+         */
+        public void finish() {
+            mFinished = true;
+        }
+
+        public int getBufferedFrames() {
+            return (int) (mWritten - mRead);
+        }
+
+        /**
+         * Latency this input adds to the mix, from the smoothed buffer level.
+         */
+        public float getLatencyMs() {
+            return mSmoothedFill * 1000f / mInputRate;
+        }
+
+        /**
+         * Clock difference of the source against the mixer in parts per million, estimated from
+         * the frames added or dropped to keep the buffer level. Positive if the source is faster.
+         */
+        public float getDriftPpm() {
+            long consumed = mRead;
+            return consumed > 0 ? mCorrectionFrames * 1000000f / consumed : 0f;
+        }
+
+        public long getUnderrunFrames() {
+            return mUnderrunFrames;
+        }
+
+        public long getOverrunFrames() {
+            return mOverrunFrames;
+        }
+
+        private void mixInto(float[] acc) {
+            int available = getBufferedFrames();
+            int target = TARGET_BLOCKS * mInputBlockFrames;
+            if (!mStarted) {
+                // wait until the source has buffered its share before it joins the mix
+                if (available < target && !mFinished) {
+                    return;
+                }
+                mStarted = true;
+                mSmoothedFill = available;
+            }
+            mSmoothedFill += (available - mSmoothedFill) * FILL_SMOOTHING;
+
+            // input frames for one mixer block, the fraction is carried so the rate is kept on average
+            int nominal = mBlockFrames;
+            if (mInputRate != mSampleRate) {
+                double exact = mBlockFrames * mRateRatio + mPhase;
+                nominal = (int) exact;
+                mPhase = exact - nominal;
+            }
+            int frames = nominal;
+            if (!mFinished) {
+                if (mSmoothedFill > target + mInputBlockFrames / 2) {
+                    frames += mMaxCorrection;
+                } else if (mSmoothedFill < target - mInputBlockFrames / 2) {
+                    frames -= mMaxCorrection;
+                }
+            }
+            if (frames > available) {
+                // underrun, mix what is there and leave the rest silent
+                mUnderrunFrames += frames - available;
+                frames = available;
+                if (frames == 0) {
+                    return;
+                }
+                int dstFrames = mInputRate == mSampleRate ? frames
+                        : Math.max(1, Math.min(mBlockFrames, (int) Math.round(frames / mRateRatio)));
+                resample(acc, frames, dstFrames);
+            } else {
+                mCorrectionFrames += frames - nominal;
+                resample(acc, frames, mBlockFrames);
+            }
+            mRead += frames;
+        }
+
+        /**
+         * Adds srcFrames buffered frames, linearly resampled to dstFrames, to the accumulator.
+         */
+        private void resample(float[] acc, int srcFrames, int dstFrames) {
+            float scale = mGain / Short.MAX_VALUE;
+            long read = mRead;
+            if (srcFrames == dstFrames) {
+                for (int f = 0; f < dstFrames; f++) {
+                    int src = (int) ((read + f) % mRingFrames) * mChannelCount;
+                    for (int c = 0; c < mChannelCount; c++) {
+                        acc[f * mChannelCount + c] += mRing[src + c] * scale;
+                    }
+                }
+                return;
+            }
+            float step = dstFrames > 1 ? (float) (srcFrames - 1) / (dstFrames - 1) : 0f;
+            for (int f = 0; f < dstFrames; f++) {
+                float position = f * step;
+                int index = (int) position;
+                float fraction = position - index;
+                int next = Math.min(index + 1, srcFrames - 1);
+                int a = (int) ((read + index) % mRingFrames) * mChannelCount;
+                int b = (int) ((read + next) % mRingFrames) * mChannelCount;
+                for (int c = 0; c < mChannelCount; c++) {
+                    float sample = mRing[a + c] + (mRing[b + c] - mRing[a + c]) * fraction;
+                    acc[f * mChannelCount + c] += sample * scale;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": " + mInputRate + " Hz, gain=" + mGain + ", latency=" + getLatencyMs() + " ms, drift=" + getDriftPpm()
+                    + " ppm, underrun=" + mUnderrunFrames + ", overrun=" + mOverrunFrames + " frames";
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Holds the results of an encoder calibration sweep for one device model and picks
+ * the best capture configuration for a requested quality.
+ * This class has no Android dependencies, so the selection logic can be run on the JVM
+ * against previously recorded results.
+ */
+public class CalibrationProfile {
+
+    public static final int QUALITY_LOW = 0;
+    public static final int QUALITY_MEDIUM = 1;
+    public static final int QUALITY_HIGH = 2;
+
+    // bits per pixel per frame needed for each quality level
+    private static final float[] QUALITY_BPP = {0.05f, 0.1f, 0.18f};
+
+    // a configuration is sustainable if it reaches this share of the requested fps...
+    private static final float MIN_FPS_RATIO = 0.95f;
+    // ...and a frame is encoded within this many frame intervals on average
+    private static final float MAX_LATENCY_FRAMES = 2.0f;
+
+    private static final String KEY_MODEL = "model";
+    private static final String KEY_MAX_BIT_RATE = "maxBitRate";
+    private static final String KEY_ENTRY_COUNT = "entries";
+    private static final String KEY_ENTRY = "entry.";
+
+    /**
+     * One measured configuration of the calibration sweep.
+     */
+    public static class Entry {
+        public final int width;
+        public final int height;
+        public final int fps;
+        public final int bitRate;
+        public final float achievedFps;
+        public final float avgLatencyMs;
+
+        public Entry(int width, int height, int fps, int bitRate, float achievedFps, float avgLatencyMs) {
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+            this.bitRate = bitRate;
+            this.achievedFps = achievedFps;
+            this.avgLatencyMs = avgLatencyMs;
+        }
+
+        public boolean isSustainable() {
+            float frameIntervalMs = 1000f / fps;
+            return achievedFps >= fps * MIN_FPS_RATIO && avgLatencyMs <= frameIntervalMs * MAX_LATENCY_FRAMES;
+        }
+
+        long pixelRate() {
+            return (long) width * height * fps;
+        }
+
+        @Override
+        public String toString() {
+            return width + "," + height + "," + bitRate + "," + fps;
+        }
+
+        String serialize() {
+            return width + "," + height + "," + fps + "," + bitRate + "," + achievedFps + "," + avgLatencyMs;
+        }
+
+        static Entry parse(String value) {
+            String[] parts = value.split(",");
+            if (parts.length != 6) {
+                throw new IllegalArgumentException("Malformed calibration entry: " + value);
+            }
+            return new Entry(
+                    Integer.parseInt(parts[0]),
+                    Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]),
+                    Integer.parseInt(parts[3]),
+                    Float.parseFloat(parts[4]),
+                    Float.parseFloat(parts[5]));
+        }
+    }
+
+    private final String mModel;
+    private final int mMaxBitRate;
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    public CalibrationProfile(String model, int maxBitRate) {
+        this.mModel = model;
+        this.mMaxBitRate = maxBitRate;
+    }
+
+    public String getModel() {
+        return mModel;
+    }
+
+    public int getMaxBitRate() {
+        return mMaxBitRate;
+    }
+
+    public void addEntry(Entry entry) {
+        mEntries.add(entry);
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    public static int bitRateFor(int width, int height, int fps, int quality) {
+        return (int) (QUALITY_BPP[clampQuality(quality)] * width * height * fps);
+    }
+
+    /**
+     * Picks the sustainable configuration with the highest pixel rate whose bitrate for the
+     * given quality still fits under the encoder maximum. The returned entry carries that
+     * bitrate instead of the one used during the sweep. Returns null if nothing measured
+     * was sustainable.
+     */
+    public Entry recommend(int quality) {
+        Entry best = null;
+        Entry fallback = null;
+
+        for (Entry entry : mEntries) {
+            if (!entry.isSustainable()) {
+                continue;
+            }
+            int bitRate = bitRateFor(entry.width, entry.height, entry.fps, quality);
+            Entry candidate = new Entry(entry.width, entry.height, entry.fps,
+                    Math.min(bitRate, mMaxBitRate), entry.achievedFps, entry.avgLatencyMs);
+
+            if (bitRate <= mMaxBitRate) {
+                if (best == null || isBetter(candidate, best)) {
+                    best = candidate;
+                }
+            } else if (fallback == null || candidate.pixelRate() < fallback.pixelRate()) {
+                // nothing fits yet, remember the cheapest one so we can cap its bitrate
+                fallback = candidate;
+            }
+        }
+        return best != null ? best : fallback;
+    }
+
+    private static boolean isBetter(Entry a, Entry b) {
+        if (a.pixelRate() != b.pixelRate()) {
+            return a.pixelRate() > b.pixelRate();
+        }
+        return a.avgLatencyMs < b.avgLatencyMs;
+    }
+
+    /**
+     * Estimates the frame rate the encoder sustains for a configuration that need not be part of
+     * the sweep, by comparing pixel rates. Every sustainable entry proves that its pixel rate can
+     * be encoded; an entry that fell behind shows what the encoder managed at most. Returns fps
+     * unless a measurement shows it cannot be reached.
+     */
+    public int sustainableFps(int width, int height, int fps) {
+        long pixels = (long) width * height;
+        long maxPixelRate = maxPixelRate();
+        if (pixels * fps <= maxPixelRate || pixels == 0) {
+            return fps;
+        }
+        return (int) Math.max(1, maxPixelRate / pixels);
+    }
+
+    /**
+     * Scales width x height down, keeping the aspect ratio and 16 pixel alignment, until
+     * {@link #sustainableFps(int, int, int)} allows fps. Returns {width, height}, unchanged if
+     * fps is sustainable at the requested size.
+     */
+    public int[] sustainableSize(int width, int height, int fps) {
+        long requested = (long) width * height * fps;
+        long maxPixelRate = maxPixelRate();
+        if (requested <= maxPixelRate || requested == 0) {
+            return new int[]{width, height};
+        }
+        double scale = Math.sqrt((double) maxPixelRate / requested);
+        // rounding down to the alignment only lowers the pixel rate further
+        return new int[]{align16(width * scale), align16(height * scale)};
+    }
+
+    /**
+     * The highest pixel rate the measurements allow: at least what a sustainable entry proved,
+     * and no limit unless an entry fell behind.
+     */
+    private long maxPixelRate() {
+        long proven = 0;
+        long limit = Long.MAX_VALUE;
+        for (Entry entry : mEntries) {
+            if (entry.isSustainable()) {
+                proven = Math.max(proven, entry.pixelRate());
+            } else {
+                limit = Math.min(limit, (long) (entry.achievedFps * entry.width * entry.height));
+            }
+        }
+        return Math.max(proven, limit);
+    }
+
+    private static int align16(double value) {
+        return Math.max(16, ((int) value) & ~15);
+    }
+
+    public void save(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_MODEL, mModel);
+        properties.setProperty(KEY_MAX_BIT_RATE, String.valueOf(mMaxBitRate));
+        properties.setProperty(KEY_ENTRY_COUNT, String.valueOf(mEntries.size()));
+        for (int i = 0; i < mEntries.size(); i++) {
+            properties.setProperty(KEY_ENTRY + i, mEntries.get(i).serialize());
+        }
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            properties.store(os, "encoder calibration");
+        } finally {
+            os.close();
+        }
+    }
+
+    /**
+     * Loads a profile stored with {@link #save(File)}. Returns null if the file does not exist
+     * or was recorded on a different device model.
+     */
+    public static CalibrationProfile load(File file, String model) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        Properties properties = new Properties();
+        InputStream is = new FileInputStream(file);
+        try {
+            properties.load(is);
+        } finally {
+            is.close();
+        }
+
+        if (!model.equals(properties.getProperty(KEY_MODEL))) {
+            return null;
+        }
+
+        try {
+            CalibrationProfile profile = new CalibrationProfile(model,
+                    Integer.parseInt(properties.getProperty(KEY_MAX_BIT_RATE)));
+            int count = Integer.parseInt(properties.getProperty(KEY_ENTRY_COUNT));
+            for (int i = 0; i < count; i++) {
+                profile.addEntry(Entry.parse(properties.getProperty(KEY_ENTRY + i)));
+            }
+            return profile;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt calibration profile " + file, e);
+        }
+    }
+
+    private static int clampQuality(int quality) {
+        return Math.max(QUALITY_LOW, Math.min(QUALITY_HIGH, quality));
+    }
+}
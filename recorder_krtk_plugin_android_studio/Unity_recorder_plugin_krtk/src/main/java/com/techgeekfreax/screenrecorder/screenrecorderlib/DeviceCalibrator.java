@@ -0,0 +1,235 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Runs a short synthetic H.264 encode sweep to find out which capture sizes and frame rates
+ * the device encoder can actually sustain. The results are persisted per device model in a
+ * {@link CalibrationProfile}, so the sweep only runs once.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class DeviceCalibrator {
+
+    private static final String TAG = DeviceCalibrator.class.getSimpleName();
+
+    private static final String MIME_TYPE = "video/avc";
+    private static final String PROFILE_FILE_NAME = "calibration.properties";
+
+    private static final long QUEUE_TIMEOUT = 10000;
+    // how long to wait for output while the next frame is not due yet
+    private static final long POLL_TIMEOUT = 1000;
+    // give up on a configuration if the encoder produces nothing for this many timeouts at the end
+    private static final int MAX_IDLE_TRIES = 50;
+    private static final float[] SCALES = {1.0f, 0.75f, 0.5f};
+    private static final int[] FRAME_RATES = {60, 30};
+    private static final int SWEEP_SECONDS = 1;
+
+    private final File mProfileFile;
+
+    public DeviceCalibrator(String appDir) {
+        this.mProfileFile = new File(appDir, PROFILE_FILE_NAME);
+    }
+
+    /**
+     * Returns the stored profile for this device model, or null if the device was not calibrated yet.
+     */
+    public CalibrationProfile loadProfile() {
+        try {
+            return CalibrationProfile.load(mProfileFile, Build.MODEL);
+        } catch (IOException e) {
+            Log.e(TAG, "could not read calibration profile: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the stored profile, running the sweep first if this device model has none yet.
+     * This blocks for a few seconds, so do not call it from the UI thread.
+     */
+    public CalibrationProfile calibrate(int screenWidth, int screenHeight) {
+        CalibrationProfile profile = loadProfile();
+        if (profile != null) {
+            return profile;
+        }
+
+        profile = new CalibrationProfile(Build.MODEL, getMaxBitRate());
+        for (float scale : SCALES) {
+            int width = align16(screenWidth * scale);
+            int height = align16(screenHeight * scale);
+            for (int fps : FRAME_RATES) {
+                int bitRate = CalibrationProfile.bitRateFor(width, height, fps, CalibrationProfile.QUALITY_MEDIUM);
+                CalibrationProfile.Entry entry = measure(width, height, fps, Math.min(bitRate, profile.getMaxBitRate()));
+                if (entry != null) {
+                    Log.d(TAG, "calibrated " + entry.serialize());
+                    profile.addEntry(entry);
+                }
+            }
+        }
+
+        try {
+            profile.save(mProfileFile);
+        } catch (IOException e) {
+            Log.e(TAG, "could not write calibration profile: " + e);
+        }
+        return profile;
+    }
+
+    private int getMaxBitRate() {
+        MediaCodec codec = null;
+        try {
+            codec = MediaCodec.createEncoderByType(MIME_TYPE);
+            MediaCodecInfo.VideoCapabilities caps = codec.getCodecInfo()
+                    .getCapabilitiesForType(MIME_TYPE).getVideoCapabilities();
+            return caps.getBitrateRange().getUpper();
+        } catch (Exception e) {
+            Log.e(TAG, "could not query encoder capabilities: " + e);
+            return Integer.MAX_VALUE;
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+        }
+    }
+
+    /**
+     * Feeds SWEEP_SECONDS worth of synthetic frames at the requested rate, the way the screen
+     * delivers them while recording, and measures the frame rate the encoder keeps up with and the
+     * average time from a frame being due to getting it back encoded. A frame that waits for an
+     * input buffer counts that wait as latency, so an encoder that falls behind shows both a lower
+     * frame rate and a growing latency.
+     */
+    private CalibrationProfile.Entry measure(int width, int height, int fps, int bitRate) {
+        MediaCodec codec = null;
+        int frameCount = fps * SWEEP_SECONDS;
+        long[] queuedAtNs = new long[frameCount];
+
+        try {
+            MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, fps);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+
+            codec = MediaCodec.createEncoderByType(MIME_TYPE);
+            codec.configure(format, null /* surface */, null /* crypto */, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+
+            byte[] frame = new byte[width * height * 3 / 2];
+            fillSyntheticFrame(frame, width, height);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long frameDurationUs = 1000000L / fps;
+            long frameDurationNs = frameDurationUs * 1000;
+
+            int queued = 0;
+            int encoded = 0;
+            int idleTries = 0;
+            long totalLatencyNs = 0;
+            long startNs = System.nanoTime();
+            boolean sawOutputEOS = false;
+
+            while (!sawOutputEOS) {
+                // a frame is due at its place in the schedule, or right away if the encoder is late
+                boolean due = queued == frameCount || System.nanoTime() >= startNs + queued * frameDurationNs;
+                if (queued <= frameCount && due) {
+                    int inputBufferIndex = codec.dequeueInputBuffer(QUEUE_TIMEOUT);
+                    if (inputBufferIndex >= 0) {
+                        ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
+                        if (queued == frameCount || inputBuffer == null) {
+                            codec.queueInputBuffer(inputBufferIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            queued = frameCount + 1;
+                        } else {
+                            // move a bar across the luma plane so the encoder can't skip the frames
+                            drawBar(frame, width, height, queued);
+                            int size = Math.min(frame.length, inputBuffer.capacity());
+                            inputBuffer.clear();
+                            inputBuffer.put(frame, 0, size);
+                            queuedAtNs[queued] = startNs + queued * frameDurationNs;
+                            codec.queueInputBuffer(inputBufferIndex, 0, size, queued * frameDurationUs, 0);
+                            queued++;
+                        }
+                    }
+                }
+
+                int outputBufferIndex = codec.dequeueOutputBuffer(info, queued > frameCount ? QUEUE_TIMEOUT : POLL_TIMEOUT);
+                if (outputBufferIndex >= 0) {
+                    idleTries = 0;
+                    boolean isConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                    if (!isConfig && info.size > 0) {
+                        int frameIndex = (int) (info.presentationTimeUs / frameDurationUs);
+                        if (frameIndex >= 0 && frameIndex < frameCount) {
+                            totalLatencyNs += System.nanoTime() - queuedAtNs[frameIndex];
+                            encoded++;
+                        }
+                    }
+                    codec.releaseOutputBuffer(outputBufferIndex, false);
+                    sawOutputEOS = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                } else if (outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER && queued > frameCount
+                        && ++idleTries >= MAX_IDLE_TRIES) {
+                    Log.d(TAG, "encoder stalled at " + width + "x" + height + "@" + fps);
+                    break;
+                }
+            }
+
+            long elapsedNs = System.nanoTime() - startNs;
+            if (encoded == 0) {
+                return null;
+            }
+            // paced input cannot finish before the last frame is due, so keeping up reads as fps
+            float achievedFps = encoded * 1e9f / Math.max(elapsedNs, frameCount * frameDurationNs);
+            float avgLatencyMs = totalLatencyNs / 1e6f / encoded;
+            return new CalibrationProfile.Entry(width, height, fps, bitRate, achievedFps, avgLatencyMs);
+
+        } catch (Exception e) {
+            // unsupported sizes throw from configure, just leave them out of the profile
+            Log.d(TAG, "encoder rejected " + width + "x" + height + "@" + fps + ": " + e);
+            return null;
+
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    Log.d(TAG, "codec was not started");
+                }
+                codec.release();
+            }
+        }
+    }
+
+    private static void fillSyntheticFrame(byte[] frame, int width, int height) {
+        int lumaSize = width * height;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                frame[row + x] = (byte) ((x + y) & 0x7F);
+            }
+        }
+        for (int i = lumaSize; i < frame.length; i++) {
+            frame[i] = (byte) 128;
+        }
+    }
+
+    private static void drawBar(byte[] frame, int width, int height, int frameIndex) {
+        int barX = (frameIndex * 8) % Math.max(1, width - 32);
+        byte luma = (byte) (frameIndex * 37);
+        for (int y = 0; y < height; y++) {
+            int row = y * width + barX;
+            for (int x = 0; x < 32 && barX + x < width; x++) {
+                frame[row + x] = luma;
+            }
+        }
+    }
+
+    private static int align16(float value) {
+        return Math.max(16, ((int) value) & ~15);
+    }
+}
@@ -0,0 +1,295 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import com.coremedia.iso.boxes.SampleDescriptionBox;
+import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
+import com.googlecode.mp4parser.authoring.AbstractTrack;
+import com.googlecode.mp4parser.authoring.Sample;
+import com.googlecode.mp4parser.authoring.SampleImpl;
+import com.googlecode.mp4parser.authoring.TrackMetaData;
+import com.googlecode.mp4parser.boxes.mp4.ESDescriptorBox;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.AudioSpecificConfig;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.DecoderConfigDescriptor;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.ESDescriptor;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.SLConfigDescriptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * AAC track built directly from MediaCodec encoder output. The raw AAC packets are kept in
+ * one growing byte array together with a primitive index of sample offsets, sizes and durations,
+ * and the sample entry is taken from the codec config buffer. That way the track can go straight
+ * into a Movie without writing an ADTS file and parsing it again with AACTrackImpl.
+ */
+public class EncodedAacTrack extends AbstractTrack implements AacPacketSink {
+
+    public static final int SAMPLES_PER_FRAME = 1024;
+
+    private static final int INITIAL_SAMPLE_CAPACITY = 1024;
+    private static final int INITIAL_DATA_CAPACITY = 256 * 1024;
+    private static final int BUFFER_SIZE_DB = 1536;
+
+    // 0: 96000 Hz, 1: 88200 Hz, 2: 64000 Hz, 3: 48000 Hz, 4: 44100 Hz, ...
+    private static final int[] SAMPLING_FREQUENCIES = {96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final TrackMetaData trackMetaData = new TrackMetaData();
+
+    private AudioSpecificConfig audioSpecificConfig;
+    private SampleDescriptionBox sampleDescriptionBox;
+
+    private byte[] data = new byte[INITIAL_DATA_CAPACITY];
+    private int dataSize;
+    private int[] offsets = new int[INITIAL_SAMPLE_CAPACITY];
+    private int[] sizes = new int[INITIAL_SAMPLE_CAPACITY];
+    private int[] durations = new int[INITIAL_SAMPLE_CAPACITY];
+    private int sampleCount;
+    private int maxSampleSize;
+    private boolean compactGrowth;
+
+    public EncodedAacTrack(int sampleRate, int channelCount) {
+        super("aac");
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+
+        trackMetaData.setCreationTime(new Date());
+        trackMetaData.setModificationTime(new Date());
+        trackMetaData.setLanguage("eng");
+        trackMetaData.setVolume(1);
+        trackMetaData.setTimescale(sampleRate);
+    }
+
+    /**
+     * Takes the AudioSpecificConfig from the encoder's BUFFER_FLAG_CODEC_CONFIG buffer (csd-0).
+     * The buffer is read from its position to its limit.
+     */
+    @Override
+    public void setCodecConfig(ByteBuffer csd) throws IOException {
+        this.audioSpecificConfig = parseAudioSpecificConfig(csd);
+        this.sampleDescriptionBox = null;
+    }
+
+    static AudioSpecificConfig parseAudioSpecificConfig(ByteBuffer csd) throws IOException {
+        int size = csd.remaining();
+        ByteBuffer descriptor = ByteBuffer.allocate(size + 1);
+        descriptor.put((byte) size);
+        descriptor.put(csd);
+        descriptor.flip();
+
+        AudioSpecificConfig config = new AudioSpecificConfig();
+        config.parse(0x05, descriptor);
+        return config;
+    }
+
+    /**
+     * Appends one raw AAC access unit, read from the buffer's position to its limit.
+     */
+    public void addSample(ByteBuffer buffer, int duration) {
+        int size = buffer.remaining();
+        ensureCapacity(size);
+
+        offsets[sampleCount] = dataSize;
+        sizes[sampleCount] = size;
+        durations[sampleCount] = duration;
+        buffer.get(data, dataSize, size);
+
+        dataSize += size;
+        maxSampleSize = Math.max(maxSampleSize, size);
+        sampleCount++;
+        sampleDescriptionBox = null;
+    }
+
+    @Override
+    public void addSample(ByteBuffer buffer) {
+        addSample(buffer, SAMPLES_PER_FRAME);
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getSampleSize(int index) {
+        return sizes[index];
+    }
+
+    public int getSampleDuration(int index) {
+        return durations[index];
+    }
+
+    /**
+     * Returns the number of payload bytes held by this track.
+     */
+    public int getDataSize() {
+        return dataSize;
+    }
+
+    /**
+     * Returns the number of bytes allocated for payload and index, including unused capacity.
+     */
+    public long getCapacity() {
+        return data.length + 12L * offsets.length;
+    }
+
+    /**
+     * With compact growth the arrays grow by a quarter instead of doubling, trading some
+     * copying for less unused capacity. Used while the device is short on memory.
+     */
+    public void setCompactGrowth(boolean compactGrowth) {
+        this.compactGrowth = compactGrowth;
+    }
+
+    /**
+     * Gives back the unused capacity of the payload and index arrays.
+     */
+    public void trimToSize() {
+        data = Arrays.copyOf(data, dataSize);
+        offsets = Arrays.copyOf(offsets, sampleCount);
+        sizes = Arrays.copyOf(sizes, sampleCount);
+        durations = Arrays.copyOf(durations, sampleCount);
+    }
+
+    /**
+     * Returns a read-only view of one sample's payload, without copying it.
+     */
+    public ByteBuffer getSampleData(int index) {
+        return ByteBuffer.wrap(data, offsets[index], sizes[index]).slice().asReadOnlyBuffer();
+    }
+
+    private void ensureCapacity(int size) {
+        if (sampleCount == offsets.length) {
+            int capacity = grow(offsets.length, sampleCount + 1);
+            offsets = Arrays.copyOf(offsets, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            durations = Arrays.copyOf(durations, capacity);
+        }
+        if (dataSize + size > data.length) {
+            data = Arrays.copyOf(data, grow(data.length, dataSize + size));
+        }
+    }
+
+    private int grow(int capacity, int needed) {
+        int grown = compactGrowth ? capacity + capacity / 4 : capacity * 2;
+        return Math.max(grown, Math.max(needed, 16));
+    }
+
+    @Override
+    public synchronized SampleDescriptionBox getSampleDescriptionBox() {
+        if (sampleDescriptionBox == null) {
+            long durationSamples = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                durationSamples += durations[i];
+            }
+            sampleDescriptionBox = createSampleDescriptionBox(sampleRate, channelCount, audioSpecificConfig,
+                    maxSampleSize, dataSize, durationSamples);
+        }
+        return sampleDescriptionBox;
+    }
+
+    /**
+     * Builds the mp4a sample entry. A null audioSpecificConfig means plain AAC LC for the given
+     * rate and channel count.
+     */
+    static SampleDescriptionBox createSampleDescriptionBox(int sampleRate, int channelCount, AudioSpecificConfig audioSpecificConfig,
+                                                           int maxSampleSize, long dataSize, long durationSamples) {
+        AudioSampleEntry audioSampleEntry = new AudioSampleEntry("mp4a");
+        audioSampleEntry.setChannelCount(channelCount);
+        audioSampleEntry.setSampleRate(sampleRate);
+        audioSampleEntry.setDataReferenceIndex(1);
+        audioSampleEntry.setSampleSize(16);
+
+        ESDescriptor descriptor = new ESDescriptor();
+        descriptor.setEsId(0);
+
+        SLConfigDescriptor slConfigDescriptor = new SLConfigDescriptor();
+        slConfigDescriptor.setPredefined(2);
+        descriptor.setSlConfigDescriptor(slConfigDescriptor);
+
+        DecoderConfigDescriptor decoderConfigDescriptor = new DecoderConfigDescriptor();
+        decoderConfigDescriptor.setObjectTypeIndication(0x40);
+        decoderConfigDescriptor.setStreamType(5);
+        decoderConfigDescriptor.setBufferSizeDB(Math.max(BUFFER_SIZE_DB, maxSampleSize));
+        decoderConfigDescriptor.setMaxBitRate((long) maxSampleSize * 8 * sampleRate / SAMPLES_PER_FRAME);
+        decoderConfigDescriptor.setAvgBitRate(durationSamples == 0 ? 0 : dataSize * 8 * sampleRate / durationSamples);
+        decoderConfigDescriptor.setAudioSpecificInfo(audioSpecificConfig != null ? audioSpecificConfig
+                : createAudioSpecificConfig(sampleRate, channelCount));
+        descriptor.setDecoderConfigDescriptor(decoderConfigDescriptor);
+
+        ESDescriptorBox esds = new ESDescriptorBox();
+        esds.setEsDescriptor(descriptor);
+        audioSampleEntry.addBox(esds);
+
+        SampleDescriptionBox box = new SampleDescriptionBox();
+        box.addBox(audioSampleEntry);
+        return box;
+    }
+
+    /**
+     * Fallback for when the encoder never delivered a codec config buffer: plain AAC LC.
+     */
+    private static AudioSpecificConfig createAudioSpecificConfig(int sampleRate, int channelCount) {
+        int frequencyIndex = 0;
+        while (frequencyIndex < SAMPLING_FREQUENCIES.length - 1 && SAMPLING_FREQUENCIES[frequencyIndex] != sampleRate) {
+            frequencyIndex++;
+        }
+
+        AudioSpecificConfig config = new AudioSpecificConfig();
+        config.setOriginalAudioObjectType(2);
+        config.setSamplingFrequencyIndex(frequencyIndex);
+        config.setChannelConfiguration(channelCount);
+        return config;
+    }
+
+    @Override
+    public long[] getSampleDurations() {
+        long[] result = new long[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            result[i] = durations[i];
+        }
+        return result;
+    }
+
+    @Override
+    public TrackMetaData getTrackMetaData() {
+        return trackMetaData;
+    }
+
+    @Override
+    public String getHandler() {
+        return "soun";
+    }
+
+    @Override
+    public List<Sample> getSamples() {
+        return new AbstractList<Sample>() {
+            @Override
+            public Sample get(int index) {
+                if (index < 0 || index >= sampleCount) {
+                    throw new IndexOutOfBoundsException("sample " + index + " of " + sampleCount);
+                }
+                return new SampleImpl(getSampleData(index));
+            }
+
+            @Override
+            public int size() {
+                return sampleCount;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        data = new byte[0];
+        dataSize = 0;
+        sampleCount = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedAacTrack{samples=" + sampleCount + ", bytes=" + dataSize + "}";
+    }
+}
@@ -0,0 +1,111 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output sink that writes straight through to the file on the calling thread, without
+ * buffering. Useful for small files and as a baseline to compare {@link WriteBehindOutputSink} against.
+ */
+public class FileOutputSink implements OutputSink {
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private long mPosition;
+    private long mIoTimeNs;
+    private int mSyncCount;
+
+    public FileOutputSink(File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * Opens the file to continue writing at position; anything after it is cut off.
+     */
+    public FileOutputSink(File file, long position) throws IOException {
+        this.mFile = new RandomAccessFile(file, "rw");
+        this.mFile.setLength(position);
+        this.mChannel = mFile.getChannel();
+        this.mPosition = position;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        long start = System.nanoTime();
+        int count = src.remaining();
+        while (src.hasRemaining()) {
+            mChannel.write(src, mPosition + count - src.remaining());
+        }
+        mPosition += count;
+        mIoTimeNs += System.nanoTime() - start;
+        return count;
+    }
+
+    @Override
+    public long position() {
+        return mPosition;
+    }
+
+    @Override
+    public void writeAt(ByteBuffer src, long position) throws IOException {
+        if (position < 0 || position + src.remaining() > mPosition) {
+            throw new IllegalArgumentException("writeAt " + position + "+" + src.remaining() + " is beyond " + mPosition);
+        }
+        long offset = position - src.position();
+        while (src.hasRemaining()) {
+            mChannel.write(src, offset + src.position());
+        }
+    }
+
+    @Override
+    public void readAt(ByteBuffer dst, long position) throws IOException {
+        if (position < 0 || position + dst.remaining() > mPosition) {
+            throw new IllegalArgumentException("readAt " + position + "+" + dst.remaining() + " is beyond " + mPosition);
+        }
+        long offset = position - dst.position();
+        while (dst.hasRemaining()) {
+            if (mChannel.read(dst, offset + dst.position()) < 0) {
+                throw new EOFException("file ends before " + (offset + dst.limit()));
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        // nothing is buffered
+    }
+
+    @Override
+    public void sync() throws IOException {
+        mChannel.force(false);
+        mSyncCount++;
+    }
+
+    @Override
+    public void syncAsync(Runnable onSynced) throws IOException {
+        // there is no I/O thread to hand the force to
+        sync();
+        onSynced.run();
+    }
+
+    @Override
+    public Stats getStats() {
+        long bytesPerSecond = mIoTimeNs > 0 ? mPosition * 1000000000L / mIoTimeNs : 0;
+        return new Stats(mPosition, bytesPerSecond, 0, 0, mSyncCount);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+        mFile.close();
+    }
+}
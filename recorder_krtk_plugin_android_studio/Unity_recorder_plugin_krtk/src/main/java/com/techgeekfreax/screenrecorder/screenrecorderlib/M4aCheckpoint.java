@@ -0,0 +1,169 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only sample index of an {@link M4aWriter} file, so an interrupted file can be finished
+ * later from the index alone, without re-encoding or scanning mdat.
+ * The header holds the layout of the file and the codec config. Each checkpoint appends the
+ * sizes of the samples written since the previous one (2 bytes each) and the end of the data
+ * they cover, protected by a CRC; a checkpoint torn by a crash is ignored on reading.
+ */
+public class M4aCheckpoint {
+
+    private static final int MAGIC = 0x4d346169;    // "M4ai"
+    private static final int VERSION = 1;
+    private static final int MAX_SAMPLE_SIZE = 0xFFFF;
+    // header bytes in front of the codec config
+    private static final int HEADER_SIZE = 38;
+    // count, data end and CRC around the 2 byte sizes of a record
+    private static final int RECORD_OVERHEAD = 16;
+
+    private final FileOutputStream mFile;
+    private final DataOutputStream mOut;
+    private final ByteArrayOutputStream mRecordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mRecord = new DataOutputStream(mRecordBytes);
+    private final CRC32 mCrc = new CRC32();
+
+    /**
+     * State of the file as of the last complete checkpoint.
+     */
+    public static class State {
+        public int sampleRate;
+        public int channelCount;
+        public long reservedOffset;
+        public int reservedSize;
+        public long mdatOffset;
+        public byte[] codecConfig;
+        public int[] sizes = new int[1024];
+        public int sampleCount;
+        public long dataEnd;
+    }
+
+    public M4aCheckpoint(File file, int sampleRate, int channelCount, long reservedOffset, int reservedSize,
+                         long mdatOffset, byte[] codecConfig) throws IOException {
+        this.mFile = new FileOutputStream(file);
+        this.mOut = new DataOutputStream(mFile);
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+        mOut.writeInt(sampleRate);
+        mOut.writeInt(channelCount);
+        mOut.writeLong(reservedOffset);
+        mOut.writeInt(reservedSize);
+        mOut.writeLong(mdatOffset);
+        mOut.writeShort(codecConfig.length);
+        mOut.write(codecConfig);
+        mOut.flush();
+    }
+
+    /**
+     * Appends sizes[from..to) and the end of the data they cover. The data must already be on
+     * disk; the index is synced before this returns.
+     */
+    public void append(int[] sizes, int from, int to, long dataEnd) throws IOException {
+        mRecordBytes.reset();
+        mRecord.writeInt(to - from);
+        for (int i = from; i < to; i++) {
+            if (sizes[i] > MAX_SAMPLE_SIZE) {
+                throw new IOException("sample " + i + " too large for the index: " + sizes[i]);
+            }
+            mRecord.writeShort(sizes[i]);
+        }
+        mRecord.writeLong(dataEnd);
+        mRecord.flush();
+
+        mCrc.reset();
+        mCrc.update(mRecordBytes.toByteArray(), 0, mRecordBytes.size());
+        mRecordBytes.writeTo(mOut);
+        mOut.writeInt((int) mCrc.getValue());
+        mOut.flush();
+        mFile.getFD().sync();
+    }
+
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    /**
+     * Reads the index up to the last complete checkpoint. Returns null if the header is missing or invalid.
+     */
+    public static State read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            State state = new State();
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                state.sampleRate = in.readInt();
+                state.channelCount = in.readInt();
+                state.reservedOffset = in.readLong();
+                state.reservedSize = in.readInt();
+                state.mdatOffset = in.readLong();
+                state.codecConfig = new byte[in.readUnsignedShort()];
+                in.readFully(state.codecConfig);
+            } catch (EOFException e) {
+                return null;
+            }
+            state.dataEnd = state.mdatOffset + 8;
+            long remaining = file.length() - HEADER_SIZE - state.codecConfig.length;
+
+            CRC32 crc = new CRC32();
+            while (true) {
+                try {
+                    int count = in.readInt();
+                    // a torn count can be anything, never allocate for more than the file holds
+                    long recordSize = RECORD_OVERHEAD + 2L * count;
+                    if (count < 0 || recordSize > remaining) {
+                        break;
+                    }
+                    remaining -= recordSize;
+                    int[] sizes = state.sizes;
+                    if (state.sampleCount + count > sizes.length) {
+                        sizes = Arrays.copyOf(sizes, Math.max(sizes.length * 2, state.sampleCount + count));
+                    }
+                    crc.reset();
+                    updateInt(crc, count);
+                    for (int i = 0; i < count; i++) {
+                        int size = in.readUnsignedShort();
+                        crc.update(size >> 8);
+                        crc.update(size);
+                        sizes[state.sampleCount + i] = size;
+                    }
+                    long dataEnd = in.readLong();
+                    updateInt(crc, (int) (dataEnd >> 32));
+                    updateInt(crc, (int) dataEnd);
+                    if (in.readInt() != (int) crc.getValue()) {
+                        break;
+                    }
+                    // only take the checkpoint once it is known to be complete
+                    state.sizes = sizes;
+                    state.sampleCount += count;
+                    state.dataEnd = dataEnd;
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            return state;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void updateInt(CRC32 crc, int value) {
+        crc.update(value >> 24);
+        crc.update(value >> 16);
+        crc.update(value >> 8);
+        crc.update(value);
+    }
+}
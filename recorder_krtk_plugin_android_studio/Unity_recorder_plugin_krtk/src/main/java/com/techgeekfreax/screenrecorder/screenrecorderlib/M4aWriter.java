@@ -0,0 +1,478 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import com.coremedia.iso.boxes.DataEntryUrlBox;
+import com.coremedia.iso.boxes.DataInformationBox;
+import com.coremedia.iso.boxes.DataReferenceBox;
+import com.coremedia.iso.boxes.FileTypeBox;
+import com.coremedia.iso.boxes.HandlerBox;
+import com.coremedia.iso.boxes.MediaBox;
+import com.coremedia.iso.boxes.MediaHeaderBox;
+import com.coremedia.iso.boxes.MediaInformationBox;
+import com.coremedia.iso.boxes.MovieBox;
+import com.coremedia.iso.boxes.MovieHeaderBox;
+import com.coremedia.iso.boxes.SampleSizeBox;
+import com.coremedia.iso.boxes.SampleTableBox;
+import com.coremedia.iso.boxes.SampleToChunkBox;
+import com.coremedia.iso.boxes.SoundMediaHeaderBox;
+import com.coremedia.iso.boxes.StaticChunkOffsetBox;
+import com.coremedia.iso.boxes.TimeToSampleBox;
+import com.coremedia.iso.boxes.TrackBox;
+import com.coremedia.iso.boxes.TrackHeaderBox;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.AudioSpecificConfig;
+import com.googlecode.mp4parser.util.ByteBufferByteChannel;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streams AAC packets straight into an M4A file in a single pass.
+ * Space for the moov box is reserved right after ftyp, sized from the expected sample count, and
+ * the encoded data is appended to mdat as it arrives. On {@link #finish()} the moov is written
+ * into the reserved space, so the file is fast-start without a second pass over the data.
+ * If the moov does not fit (the recording ran longer than expected) mdat is moved back to make
+ * room, except for journaled files, which get the moov appended after mdat.
+ * Only the per-sample sizes are kept in memory; the payload goes straight to the {@link OutputSink}.
+ * With {@link #setCheckpoint(File, long)} the sizes are also journaled to an {@link M4aCheckpoint}
+ * index, and {@link #recover(File, File)} finishes a file that was never finished from that index.
+ */
+public class M4aWriter implements AacPacketSink, Closeable {
+
+    private static final String TAG = M4aWriter.class.getSimpleName();
+
+    private static final int SAMPLES_PER_CHUNK = 64;
+    private static final int BOX_HEADER_SIZE = 8;
+
+    // moov without the per-sample tables, with some slack for the esds and language boxes
+    private static final int MOOV_BASE_SIZE = 1024;
+    private static final int MIN_RESERVED_SIZE = 4096;
+    private static final int MOVE_BLOCK_SIZE = 64 * 1024;
+
+    private final int sampleRate;
+    private final int channelCount;
+    private final OutputSink sink;
+
+    private final long reservedOffset;
+    private final int reservedSize;
+    private final long mdatOffset;
+
+    private AudioSpecificConfig audioSpecificConfig;
+    private byte[] codecConfig;
+    private int[] sizes = new int[1024];
+    private long[] chunkOffsets = new long[64];
+    private int sampleCount;
+    private int chunkCount;
+    private long dataSize;
+    private int maxSampleSize;
+    private boolean finished;
+    private boolean journaled;
+
+    private File checkpointFile;
+    private long checkpointIntervalMs;
+    private int checkpointedSamples;
+    private long lastCheckpointMs;
+
+    // written by whichever thread the sink runs the sync callbacks on
+    private M4aCheckpoint checkpoint;
+    private volatile boolean checkpointFailed;
+
+    /**
+     * @param expectedSampleCount number of AAC frames expected, used to size the space reserved for moov
+     */
+    public M4aWriter(File outputFile, int sampleRate, int channelCount, long expectedSampleCount) throws IOException {
+        this(new WriteBehindOutputSink(outputFile, 0), sampleRate, channelCount, expectedSampleCount);
+    }
+
+    /**
+     * @param expectedSampleCount number of AAC frames expected, used to size the space reserved for moov
+     */
+    public M4aWriter(OutputSink sink, int sampleRate, int channelCount, long expectedSampleCount) throws IOException {
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.sink = sink;
+
+        List<String> compatibleBrands = new ArrayList<>();
+        compatibleBrands.add("M4A ");
+        compatibleBrands.add("mp42");
+        compatibleBrands.add("isom");
+        new FileTypeBox("M4A ", 0, compatibleBrands).getBox(sink);
+
+        this.reservedOffset = sink.position();
+        this.reservedSize = estimateMoovSize(expectedSampleCount);
+        write(boxHeader(reservedSize, "free"));
+        write(ByteBuffer.allocate(reservedSize - BOX_HEADER_SIZE));
+
+        this.mdatOffset = sink.position();
+        write(boxHeader(BOX_HEADER_SIZE, "mdat"));
+    }
+
+    private M4aWriter(OutputSink sink, M4aCheckpoint.State state) throws IOException {
+        this.sampleRate = state.sampleRate;
+        this.channelCount = state.channelCount;
+        this.sink = sink;
+        this.reservedOffset = state.reservedOffset;
+        this.reservedSize = state.reservedSize;
+        this.mdatOffset = state.mdatOffset;
+        // recovery runs again if merging fails, so mdat has to stay where the index says
+        this.journaled = true;
+
+        setCodecConfig(ByteBuffer.wrap(state.codecConfig));
+        // the samples are contiguous in mdat, so the chunk offsets follow from the sizes
+        long offset = mdatOffset + BOX_HEADER_SIZE;
+        for (int i = 0; i < state.sampleCount; i++) {
+            if (sampleCount % SAMPLES_PER_CHUNK == 0) {
+                if (chunkCount == chunkOffsets.length) {
+                    chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+                }
+                chunkOffsets[chunkCount++] = offset;
+            }
+            if (sampleCount == sizes.length) {
+                sizes = Arrays.copyOf(sizes, sampleCount * 2);
+            }
+            int size = state.sizes[i];
+            sizes[sampleCount++] = size;
+            offset += size;
+            dataSize += size;
+            maxSampleSize = Math.max(maxSampleSize, size);
+        }
+    }
+
+    /**
+     * Finishes an M4A file whose writer never got to {@link #finish()}, e.g. because the process
+     * died, from the samples recorded in its checkpoint index. Whatever was written after the last
+     * checkpoint is cut off. Returns false if the index is unusable or holds no samples.
+     */
+    public static boolean recover(File outputFile, File checkpointFile) throws IOException {
+        M4aCheckpoint.State state = M4aCheckpoint.read(checkpointFile);
+        if (state == null || state.sampleCount == 0 || state.dataEnd > outputFile.length()) {
+            return false;
+        }
+        M4aWriter writer = new M4aWriter(new FileOutputSink(outputFile, state.dataEnd), state);
+        try {
+            boolean fastStart = writer.finish();
+            Log.d(TAG, "recovered " + state.sampleCount + " samples into " + outputFile + (fastStart ? " (fast start)" : ""));
+        } finally {
+            writer.close();
+        }
+        return true;
+    }
+
+    /**
+     * Journals the sample sizes to indexFile at most every intervalMs, once the codec config is known.
+     * Each checkpoint is appended only once the sink has synced the data it covers, so the index
+     * never points past the data on disk; with a {@link WriteBehindOutputSink} both happen on its
+     * I/O thread and the caller of {@link #addSample(ByteBuffer)} never waits for the device.
+     */
+    public void setCheckpoint(File indexFile, long intervalMs) {
+        this.checkpointFile = indexFile;
+        this.checkpointIntervalMs = intervalMs;
+        this.journaled = true;
+    }
+
+    static int estimateMoovSize(long sampleCount) {
+        long chunks = sampleCount / SAMPLES_PER_CHUNK + 1;
+        long size = MOOV_BASE_SIZE + 4 * sampleCount + 4 * chunks;
+        // ten percent on top in case the recording runs a little long
+        return (int) Math.max(MIN_RESERVED_SIZE, size + size / 10);
+    }
+
+    @Override
+    public void setCodecConfig(ByteBuffer csd) throws IOException {
+        this.codecConfig = new byte[csd.remaining()];
+        csd.duplicate().get(codecConfig);
+        this.audioSpecificConfig = EncodedAacTrack.parseAudioSpecificConfig(csd);
+    }
+
+    @Override
+    public void addSample(ByteBuffer buffer) throws IOException {
+        if (finished) {
+            throw new IllegalStateException("M4aWriter already finished");
+        }
+        int size = buffer.remaining();
+
+        if (sampleCount % SAMPLES_PER_CHUNK == 0) {
+            if (chunkCount == chunkOffsets.length) {
+                chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+            }
+            chunkOffsets[chunkCount++] = sink.position();
+        }
+        if (sampleCount == sizes.length) {
+            sizes = Arrays.copyOf(sizes, sampleCount * 2);
+        }
+        sizes[sampleCount++] = size;
+
+        write(buffer);
+        dataSize += size;
+        maxSampleSize = Math.max(maxSampleSize, size);
+
+        if (checkpointFile != null && System.currentTimeMillis() - lastCheckpointMs >= checkpointIntervalMs) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Asks the sink to sync the data written so far and to append the new sample sizes to the
+     * checkpoint index once that sync is done.
+     */
+    public void checkpoint() throws IOException {
+        if (checkpointFile == null || codecConfig == null || checkpointFailed) {
+            return;
+        }
+        lastCheckpointMs = System.currentTimeMillis();
+        final int[] newSizes = Arrays.copyOfRange(sizes, checkpointedSamples, sampleCount);
+        final long dataEnd = sink.position();
+        checkpointedSamples = sampleCount;
+        sink.syncAsync(new Runnable() {
+            @Override
+            public void run() {
+                appendCheckpoint(newSizes, dataEnd);
+            }
+        });
+    }
+
+    private void appendCheckpoint(int[] newSizes, long dataEnd) {
+        if (checkpointFailed) {
+            return;
+        }
+        try {
+            if (checkpoint == null) {
+                checkpoint = new M4aCheckpoint(checkpointFile, sampleRate, channelCount, reservedOffset, reservedSize,
+                        mdatOffset, codecConfig);
+            }
+            checkpoint.append(newSizes, 0, newSizes.length, dataEnd);
+        } catch (IOException e) {
+            // a missing record would shift every size after it, so the index ends here
+            Log.e(TAG, "checkpoint failed, no more checkpoints for this file: " + e);
+            checkpointFailed = true;
+        }
+    }
+
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Patches the mdat size and writes the moov box into the reserved space in front of mdat. If
+     * the moov is larger than the reserve, mdat is moved back to make room. Returns true if the
+     * file is fast-start, which is always the case unless the file is journaled.
+     */
+    public boolean finish() throws IOException {
+        if (finished) {
+            throw new IllegalStateException("M4aWriter already finished");
+        }
+        finished = true;
+
+        long mdatSize = sink.position() - mdatOffset;
+        sink.writeAt(boxHeader(mdatSize, "mdat"), mdatOffset);
+
+        MovieBox moov = createMovieBox(0);
+        long moovSize = moov.getSize();
+        long remaining = reservedSize - moovSize;
+
+        if (remaining != 0 && remaining < BOX_HEADER_SIZE) {
+            if (journaled) {
+                // the checkpoint index points into mdat where it is, so the moov goes to the end
+                Log.w(TAG, "moov (" + moovSize + " bytes) did not fit into " + reservedSize + " reserved bytes, appending it");
+                moov.getBox(sink);
+                sink.sync();
+                return false;
+            }
+            // grow the reserve to the moov, or to the moov and an empty free box if less would be left
+            long shift = remaining < 0 ? -remaining : BOX_HEADER_SIZE - remaining;
+            Log.w(TAG, "moov (" + moovSize + " bytes) did not fit into " + reservedSize + " reserved bytes, moving mdat by " + shift);
+            moveMdat(shift);
+            // stco has one fixed size entry per chunk, so the moov keeps its size
+            moov = createMovieBox(shift);
+            remaining += shift;
+        }
+
+        // the rest of the reserved space is already zero, it only needs a free box header
+        ByteBuffer head = ByteBuffer.allocate((int) moovSize + (remaining > 0 ? BOX_HEADER_SIZE : 0));
+        moov.getBox(new ByteBufferByteChannel(head));
+        if (remaining > 0) {
+            head.put(boxHeader(remaining, "free"));
+        }
+        head.flip();
+        sink.writeAt(head, reservedOffset);
+        sink.sync();
+        return true;
+    }
+
+    /**
+     * Moves mdat, header included, shift bytes towards the end of the file. The blocks are copied
+     * from the end backwards, so no block overwrites data that is still to be copied.
+     */
+    private void moveMdat(long shift) throws IOException {
+        long end = sink.position();
+        long zeros = shift;
+        while (zeros > 0) {
+            int length = (int) Math.min(zeros, MOVE_BLOCK_SIZE);
+            write(ByteBuffer.allocate(length));
+            zeros -= length;
+        }
+
+        ByteBuffer block = ByteBuffer.allocate((int) Math.min(MOVE_BLOCK_SIZE, end - mdatOffset));
+        while (end > mdatOffset) {
+            int length = (int) Math.min(block.capacity(), end - mdatOffset);
+            long start = end - length;
+            block.clear();
+            block.limit(length);
+            sink.readAt(block, start);
+            block.flip();
+            sink.writeAt(block, start + shift);
+            end = start;
+        }
+
+        // the space mdat was moved out of becomes part of the reserve, clear what it held
+        long cleared = mdatOffset;
+        while (cleared < mdatOffset + shift) {
+            int length = (int) Math.min(mdatOffset + shift - cleared, MOVE_BLOCK_SIZE);
+            sink.writeAt(ByteBuffer.allocate(length), cleared);
+            cleared += length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            // closing the sink waits for its pending checkpoints
+            sink.close();
+        } finally {
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+        }
+        Log.d(TAG, "output " + sink.getStats());
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            sink.write(buffer);
+        }
+    }
+
+    private static ByteBuffer boxHeader(long size, String type) {
+        ByteBuffer header = ByteBuffer.allocate(BOX_HEADER_SIZE);
+        header.putInt((int) size);
+        for (int i = 0; i < 4; i++) {
+            header.put((byte) type.charAt(i));
+        }
+        header.flip();
+        return header;
+    }
+
+    /**
+     * @param chunkShift added to every chunk offset, for when mdat was moved
+     */
+    private MovieBox createMovieBox(long chunkShift) {
+        long duration = (long) sampleCount * EncodedAacTrack.SAMPLES_PER_FRAME;
+        Date now = new Date();
+
+        MovieBox moov = new MovieBox();
+
+        MovieHeaderBox mvhd = new MovieHeaderBox();
+        mvhd.setCreationTime(now);
+        mvhd.setModificationTime(now);
+        mvhd.setTimescale(sampleRate);
+        mvhd.setDuration(duration);
+        mvhd.setNextTrackId(2);
+        moov.addBox(mvhd);
+
+        TrackBox trak = new TrackBox();
+        TrackHeaderBox tkhd = new TrackHeaderBox();
+        tkhd.setEnabled(true);
+        tkhd.setInMovie(true);
+        tkhd.setCreationTime(now);
+        tkhd.setModificationTime(now);
+        tkhd.setTrackId(1);
+        tkhd.setDuration(duration);
+        tkhd.setVolume(1);
+        trak.addBox(tkhd);
+
+        MediaBox mdia = new MediaBox();
+        MediaHeaderBox mdhd = new MediaHeaderBox();
+        mdhd.setCreationTime(now);
+        mdhd.setModificationTime(now);
+        mdhd.setTimescale(sampleRate);
+        mdhd.setDuration(duration);
+        mdhd.setLanguage("eng");
+        mdia.addBox(mdhd);
+
+        HandlerBox hdlr = new HandlerBox();
+        hdlr.setHandlerType("soun");
+        hdlr.setName("SoundHandler");
+        mdia.addBox(hdlr);
+
+        MediaInformationBox minf = new MediaInformationBox();
+        minf.addBox(new SoundMediaHeaderBox());
+
+        DataInformationBox dinf = new DataInformationBox();
+        DataReferenceBox dref = new DataReferenceBox();
+        DataEntryUrlBox url = new DataEntryUrlBox();
+        url.setFlags(1);    // media data is in this file
+        dref.addBox(url);
+        dinf.addBox(dref);
+        minf.addBox(dinf);
+
+        minf.addBox(createSampleTableBox(chunkShift));
+        mdia.addBox(minf);
+        trak.addBox(mdia);
+        moov.addBox(trak);
+        return moov;
+    }
+
+    private SampleTableBox createSampleTableBox(long chunkShift) {
+        SampleTableBox stbl = new SampleTableBox();
+
+        long durationSamples = (long) sampleCount * EncodedAacTrack.SAMPLES_PER_FRAME;
+        stbl.addBox(EncodedAacTrack.createSampleDescriptionBox(sampleRate, channelCount, audioSpecificConfig,
+                maxSampleSize, dataSize, durationSamples));
+
+        TimeToSampleBox stts = new TimeToSampleBox();
+        List<TimeToSampleBox.Entry> timeEntries = new ArrayList<>();
+        if (sampleCount > 0) {
+            timeEntries.add(new TimeToSampleBox.Entry(sampleCount, EncodedAacTrack.SAMPLES_PER_FRAME));
+        }
+        stts.setEntries(timeEntries);
+        stbl.addBox(stts);
+
+        SampleToChunkBox stsc = new SampleToChunkBox();
+        List<SampleToChunkBox.Entry> chunkEntries = new ArrayList<>();
+        if (sampleCount > 0) {
+            int lastChunkSamples = sampleCount - (chunkCount - 1) * SAMPLES_PER_CHUNK;
+            if (chunkCount > 1) {
+                chunkEntries.add(new SampleToChunkBox.Entry(1, SAMPLES_PER_CHUNK, 1));
+            }
+            if (chunkCount == 1 || lastChunkSamples != SAMPLES_PER_CHUNK) {
+                chunkEntries.add(new SampleToChunkBox.Entry(chunkCount, lastChunkSamples, 1));
+            }
+        }
+        stsc.setEntries(chunkEntries);
+        stbl.addBox(stsc);
+
+        SampleSizeBox stsz = new SampleSizeBox();
+        long[] sampleSizes = new long[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            sampleSizes[i] = sizes[i];
+        }
+        stsz.setSampleSizes(sampleSizes);
+        stbl.addBox(stsz);
+
+        StaticChunkOffsetBox stco = new StaticChunkOffsetBox();
+        long[] offsets = Arrays.copyOf(chunkOffsets, chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            offsets[i] += chunkShift;
+        }
+        stco.setChunkOffsets(offsets);
+        stbl.addBox(stco);
+
+        return stbl;
+    }
+}
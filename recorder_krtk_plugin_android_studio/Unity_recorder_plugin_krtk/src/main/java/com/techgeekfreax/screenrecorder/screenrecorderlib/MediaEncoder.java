@@ -7,11 +7,9 @@ import android.media.MediaFormat;
 import android.os.Build;
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
@@ -23,6 +21,11 @@ import java.nio.ByteBuffer;
  * The result is NOT a raw AAC file, but every AAC packet is prefixed with an ADTS header.
  * That way the file is playable on most devices/players. To increase compatibility, the
  * result should also be wrapped in an M4A container, but this is not done here.
+ * The encoded packets are also collected into an {@link EncodedAacTrack}, which can be muxed
+ * directly; if that is all the caller needs, the ADTS file can be turned off with
+ * {@link #setWriteAdts(boolean)}. For audio-only output, {@link #exportM4a(String, String)}
+ * streams the packets straight into an M4A file instead, and {@link #encode(InputStream)} encodes
+ * live PCM such as the microphone and game audio mix.
  * This code works on Android from API 16+
  */
 public class MediaEncoder {
@@ -31,29 +34,209 @@ public class MediaEncoder {
 
     private static final long QUEUE_TIMEOUT = 5000;
 
-    private static final int CHANNEL_COUNT = 2;
+    static final int CHANNEL_COUNT = 2;
+    static final int SAMPLE_RATE = 48000;
     private static final int AAC_PROFILE = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
     private static final int ADTS_SIZE = 7;
     private static final int WAV_HEADER_SIZE = 44;
+    private static final int BIT_RATE = 128 * 1024;
+    // average AAC frame at BIT_RATE, used to preallocate the output files
+    private static final int EXPECTED_PACKET_SIZE = BIT_RATE / 8 * 1024 / SAMPLE_RATE;
 
-    public void encode(String inputFilePath) {
+    private boolean mWriteAdts = true;
+    private final byte[] mAdtsHeader = new byte[ADTS_SIZE];
+    private EncodedAacTrack mTrack;
+    private AacPacketSink mSink;
+    private MemoryGovernor mGovernor;
+    private boolean mTrackTrimmed;
 
-        MediaCodec codec = null;
-        MediaFormat format;
-        FileOutputStream outputStream;
+    /**
+     * Whether encode() also writes the .aac file with ADTS headers next to the input. Defaults to true.
+     */
+    public void setWriteAdts(boolean writeAdts) {
+        this.mWriteAdts = writeAdts;
+    }
+
+    /**
+     * Lets encode() report the size of the collected track and keep it compact under memory pressure.
+     */
+    public void setMemoryGovernor(MemoryGovernor governor) {
+        this.mGovernor = governor;
+    }
+
+    /**
+     * Returns the track collected by the last encode() call, or null if nothing was encoded or
+     * the encoding failed part way.
+     */
+    public EncodedAacTrack getTrack() {
+        return mTrack != null && mTrack.getSampleCount() > 0 ? mTrack : null;
+    }
+
+    /**
+     * Encodes 16 bit PCM (2 channel, 48000 Hz, no header) from the stream until it ends, e.g. the
+     * live mix of a {@link MixerInputStream}. The packets are collected into the track returned by
+     * getTrack(), no ADTS file is written.
+     * Returns false, and drops the track, if the audio could not be encoded completely.
+     */
+    public boolean encode(InputStream pcmStream) {
+        mTrack = new EncodedAacTrack(SAMPLE_RATE, CHANNEL_COUNT);
+        mTrackTrimmed = false;
+        try {
+            encode(pcmStream, null, mTrack);
+        } catch (IOException e) {
+            Log.e(TAG, "error during encoding: " + e);
+            // a truncated track would be merged as if it was the whole recording
+            mTrack = null;
+            return false;
+        }
+        Log.d(TAG, "encoded " + mTrack);
+        return true;
+    }
+
+    /**
+     * Same as {@link #encode(InputStream)}, but hands the packets to sink instead of collecting them.
+     * Returns false if the audio could not be encoded completely; what sink received is then truncated.
+     */
+    public boolean encode(InputStream pcmStream, AacPacketSink sink) {
+        try {
+            encode(pcmStream, null, sink);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "error during encoding: " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Encodes the WAV file into the track returned by getTrack().
+     * Returns false, and drops the track, if the audio could not be encoded completely.
+     */
+    public boolean encode(String inputFilePath) {
+        mTrack = new EncodedAacTrack(SAMPLE_RATE, CHANNEL_COUNT);
+        mTrackTrimmed = false;
+        String adtsFilePath = inputFilePath.substring(0, inputFilePath.lastIndexOf(".")) + ".aac";
+        try {
+            encode(inputFilePath, mWriteAdts ? adtsFilePath : null, mTrack);
+        } catch (IOException e) {
+            Log.e(TAG, "error during encoding: " + e);
+            mTrack = null;
+            return false;
+        }
+        Log.d(TAG, "encoded " + mTrack);
+        return true;
+    }
+
+    /**
+     * Encodes the WAV file straight into a fast-start M4A file, in a single pass and without an
+     * intermediate ADTS file. Only the sample sizes are held in memory.
+     * Returns false, and leaves no file behind, if the audio could not be encoded completely.
+     */
+    public boolean exportM4a(String inputFilePath, String outputFilePath) {
+        long expectedSamples = expectedSampleCount(inputFilePath);
+        long expectedSize = M4aWriter.estimateMoovSize(expectedSamples) + expectedSamples * EXPECTED_PACKET_SIZE;
+        File outputFile = new File(outputFilePath);
+
+        OutputSink sink = null;
+        M4aWriter writer = null;
+        boolean success = false;
+        try {
+            sink = new WriteBehindOutputSink(outputFile, expectedSize);
+            writer = new M4aWriter(sink, SAMPLE_RATE, CHANNEL_COUNT, expectedSamples);
+            encode(inputFilePath, null, writer);
+            if (writer.getSampleCount() == 0) {
+                Log.e(TAG, "no audio encoded from " + inputFilePath);
+                return false;
+            }
+            boolean fastStart = writer.finish();
+            writer.close();
+            success = true;
+            Log.d(TAG, "m4a written to " + outputFilePath + (fastStart ? " (fast start)" : ""));
+            return true;
+
+        } catch (IOException e) {
+            Log.e(TAG, "error writing m4a: " + e);
+            return false;
+
+        } finally {
+            if (!success) {
+                // the writer closes its sink, without one the sink is closed directly
+                Closeable output = writer != null ? writer : sink;
+                if (output != null) {
+                    try {
+                        output.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "could not close m4a file: " + e);
+                    }
+                }
+                // a truncated or empty m4a is worse than none
+                if (outputFile.exists() && !outputFile.delete()) {
+                    Log.e(TAG, "could not delete incomplete " + outputFilePath);
+                }
+            }
+        }
+    }
+
+    /**
+     * 16 bit PCM, so the WAV size tells us exactly how many AAC frames to expect.
+     */
+    private long expectedSampleCount(String inputFilePath) {
+        long pcmFrames = Math.max(0, new File(inputFilePath).length() - WAV_HEADER_SIZE) / (2 * CHANNEL_COUNT);
+        return (pcmFrames + EncodedAacTrack.SAMPLES_PER_FRAME - 1) / EncodedAacTrack.SAMPLES_PER_FRAME;
+    }
+
+    private void encode(String inputFilePath, String adtsFilePath, AacPacketSink sink) throws IOException {
+
+        FileInputStream inputStream = null;
+        OutputSink outputStream = null;
 
         try {
             Log.d(TAG, "encode file: " + inputFilePath);
 
             // create input stream
             File file = new File(inputFilePath);
-            FileInputStream inputStream = new FileInputStream(file);
+            inputStream = new FileInputStream(file);
             inputStream.skip(WAV_HEADER_SIZE);
 
             // create output stream
-            final String outputFilePath = inputFilePath.substring(0, inputFilePath.lastIndexOf(".")) + ".aac";
-            outputStream = new FileOutputStream(outputFilePath);
+            if (adtsFilePath != null) {
+                long expectedSize = expectedSampleCount(inputFilePath) * (EXPECTED_PACKET_SIZE + ADTS_SIZE);
+                outputStream = new WriteBehindOutputSink(new File(adtsFilePath), expectedSize);
+            }
+
+            // encode wav file
+            encode(inputStream, outputStream, sink);
+
+            if (outputStream != null) {
+                outputStream.close();
+                Log.d(TAG, "encoded song written to " + adtsFilePath + ", " + outputStream.getStats());
+            }
+
+        } finally {
+            // close input and output streams
+            if (outputStream != null && outputStream.isOpen()) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "could not close aac file: " + e);
+                }
+            }
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "could not close wav file: " + e);
+                }
+            }
+        }
+    }
 
+    private void encode(InputStream inputStream, OutputSink outputStream, AacPacketSink sink) throws IOException {
+
+        MediaCodec codec = null;
+        MediaFormat format;
+        mSink = sink;
+
+        try {
             // set ouput mime type
             final String outputMimeType = "audio/mp4a-latm";
 
@@ -61,37 +244,35 @@ public class MediaEncoder {
             format = new MediaFormat();
             format.setString(MediaFormat.KEY_MIME, outputMimeType);
             format.setInteger(MediaFormat.KEY_AAC_PROFILE, AAC_PROFILE);
-            format.setInteger(MediaFormat.KEY_SAMPLE_RATE, 48000);
+            format.setInteger(MediaFormat.KEY_SAMPLE_RATE, SAMPLE_RATE);
             format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, CHANNEL_COUNT);
-            format.setInteger(MediaFormat.KEY_BIT_RATE, 128 * 1024); // desired output(!) rate for encoder
+            format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE); // desired output(!) rate for encoder
             Log.d(TAG, "format created");
 
             // get and configure encoding codec
             codec = MediaCodec.createEncoderByType(outputMimeType);
             codec.configure(format, null /* surface */, null /* crypto */, MediaCodec.CONFIGURE_FLAG_ENCODE);
 
-            // encode wav file
             encodeSong(inputStream, outputStream, codec);
 
-            // close input and output streams
-            outputStream.close();
-            inputStream.close();
-
-            Log.d(TAG, "encoded song written to " + outputFilePath);
-
-        } catch (Exception e) {
-            Log.e(TAG, "error during encoding: " + e);
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            // MediaCodec.CodecException is an IllegalStateException
+            throw new IOException("encoder failed", e);
 
         } finally {
             if (codec != null) {
-                codec.flush();
-                codec.stop();
+                try {
+                    codec.flush();
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    // the codec never started, there is nothing to stop
+                }
                 codec.release();
             }
         }
     }
 
-    private void encodeSong(InputStream inputStream, FileOutputStream outputStream, MediaCodec codec) {
+    private void encodeSong(InputStream inputStream, OutputSink outputStream, MediaCodec codec) throws IOException {
         if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT_WATCH) {
             encodeLegacyStyle(inputStream, outputStream, codec);
         } else {
@@ -101,7 +282,7 @@ public class MediaEncoder {
 
     @SuppressWarnings("deprecation")
     @TargetApi(Build.VERSION_CODES.KITKAT_WATCH)
-    private void encodeLegacyStyle(InputStream inputStream, FileOutputStream outputStream, MediaCodec codec) {
+    private void encodeLegacyStyle(InputStream inputStream, OutputSink outputStream, MediaCodec codec) throws IOException {
         Log.d(TAG, "encodeLegacyStyle started");
 
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
@@ -114,85 +295,83 @@ public class MediaEncoder {
         ByteBuffer[] inputBuffers = codec.getInputBuffers();
         ByteBuffer[] outputBuffers = codec.getOutputBuffers();
 
-        try {
-            while (!sawOutputEOS && noOutputCounter < 50) {
+        while (!sawOutputEOS && noOutputCounter < 50) {
 
-                noOutputCounter++;
+            noOutputCounter++;
 
-                // fill codec input buffers with wav data
-                if (!sawInputEOS) {
+            // fill codec input buffers with wav data
+            if (!sawInputEOS) {
 
-                    // get index of free input buffer from codec
-                    int inputBufferIndex = codec.dequeueInputBuffer(QUEUE_TIMEOUT);
+                // get index of free input buffer from codec
+                int inputBufferIndex = codec.dequeueInputBuffer(QUEUE_TIMEOUT);
 
-                    if (inputBufferIndex >= 0) {
+                if (inputBufferIndex >= 0) {
 
-                        // get free input buffer from codec
-                        byte[] inputBuffer = inputBuffers[inputBufferIndex].array();
+                    // get free input buffer from codec
+                    byte[] inputBuffer = inputBuffers[inputBufferIndex].array();
 
-                        // read wav data into byte array
-                        final int bufferSize = inputBuffer.length;
-                        int sampleSize = inputStream.read(inputBuffer, 0, bufferSize);
+                    // read wav data into byte array
+                    final int bufferSize = inputBuffer.length;
+                    int sampleSize = inputStream.read(inputBuffer, 0, bufferSize);
 
-                        long presentationTimeUs = System.nanoTime();
+                    long presentationTimeUs = System.nanoTime();
 
-                        if (sampleSize < 0) {
-                            Log.d(TAG, "saw input EOS.");
-                            sawInputEOS = true;
-                            sampleSize = 0;
-                        }
-
-                        // queue new input buffer to encode it
-                        codec.queueInputBuffer(
-                                inputBufferIndex,
-                                0,
-                                sampleSize,
-                                presentationTimeUs,
-                                sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0
-                        );
+                    if (sampleSize < 0) {
+                        Log.d(TAG, "saw input EOS.");
+                        sawInputEOS = true;
+                        sampleSize = 0;
                     }
+
+                    // queue new input buffer to encode it
+                    codec.queueInputBuffer(
+                            inputBufferIndex,
+                            0,
+                            sampleSize,
+                            presentationTimeUs,
+                            sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0
+                    );
                 }
+            }
 
-                // see if codec has encoded data in a new output buffer
-                int outputBufferIndex = codec.dequeueOutputBuffer(info, QUEUE_TIMEOUT);
-                if (outputBufferIndex >= 0) {
+            // see if codec has encoded data in a new output buffer
+            int outputBufferIndex = codec.dequeueOutputBuffer(info, QUEUE_TIMEOUT);
+            if (outputBufferIndex >= 0) {
 
-                    if (info.size > 0) {
-                        noOutputCounter = 0;
-                    }
+                if (info.size > 0) {
+                    noOutputCounter = 0;
+                }
 
-                    // prepare output buffer including ADTS header
-                    int outBitsSize = info.size;
-                    int outPacketSize = outBitsSize + ADTS_SIZE;
-                    ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];
+                // prepare output buffer including ADTS header
+                int outBitsSize = info.size;
+                int outPacketSize = outBitsSize + ADTS_SIZE;
+                ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];
 
-                    if (outputBuffer != null) {
-                        // add encoded data to file
-                        drainOutputBuffer(outputStream, info, outBitsSize, outPacketSize, outputBuffer);
-                    }
+                if (outputBuffer != null) {
+                    // add encoded data to file
+                    drainOutputBuffer(outputStream, info, outBitsSize, outPacketSize, outputBuffer);
+                }
 
-                    codec.releaseOutputBuffer(outputBufferIndex, false);
+                codec.releaseOutputBuffer(outputBufferIndex, false);
 
-                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        Log.d(TAG, "saw output EOS.");
-                        sawOutputEOS = true;
-                    }
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    Log.d(TAG, "saw output EOS.");
+                    sawOutputEOS = true;
+                }
 
-                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    outputBuffers = codec.getOutputBuffers();
+            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
 
-                } else {
-                    Log.d(TAG, "dequeueOutputBuffer returned " + outputBufferIndex);
+            } else {
+                Log.d(TAG, "dequeueOutputBuffer returned " + outputBufferIndex);
 
-                }
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Error while encoding: " + e);
         }
+
+        checkEndOfStream(sawOutputEOS);
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private void encodeLollipopStyle(InputStream inputStream, FileOutputStream outputStream, MediaCodec codec) {
+    private void encodeLollipopStyle(InputStream inputStream, OutputSink outputStream, MediaCodec codec) throws IOException {
         Log.d(TAG, "encodeLollipopStyle started");
 
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
@@ -200,128 +379,150 @@ public class MediaEncoder {
         boolean sawInputEOS = false;
         boolean sawOutputEOS = false;
         int noOutputCounter = 0;
+        byte[] buffer = null;
 
         codec.start();
 
-        try {
-            while (!sawOutputEOS && noOutputCounter < 50) {
-
-                noOutputCounter++;
+        while (!sawOutputEOS && noOutputCounter < 50) {
 
-                // fill codec input buffers with wav data
-                if (!sawInputEOS) {
+            noOutputCounter++;
 
-                    // get index of free input buffer from codec
-                    int inputBufferIndex = codec.dequeueInputBuffer(QUEUE_TIMEOUT);
+            // fill codec input buffers with wav data
+            if (!sawInputEOS) {
 
-                    if (inputBufferIndex >= 0) {
+                // get index of free input buffer from codec
+                int inputBufferIndex = codec.dequeueInputBuffer(QUEUE_TIMEOUT);
 
-                        // get free input buffer from codec
-                        ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
+                if (inputBufferIndex >= 0) {
 
-                        if (inputBuffer != null) {
+                    // get free input buffer from codec
+                    ByteBuffer inputBuffer = codec.getInputBuffer(inputBufferIndex);
 
-                            // read wav data into byte array
-                            final int bufferSize = inputBuffer.capacity();
-                            byte[] buffer = new byte[bufferSize];
-                            int bytesRead = inputStream.read(buffer, 0, bufferSize);
+                    if (inputBuffer != null) {
 
-                            long presentationTimeUs = System.nanoTime();
+                        // read wav data into byte array, reused as long as the codec buffers keep their size
+                        final int bufferSize = inputBuffer.capacity();
+                        if (buffer == null || buffer.length < bufferSize) {
+                            buffer = new byte[bufferSize];
+                        }
+                        int bytesRead = inputStream.read(buffer, 0, bufferSize);
 
-                            if (bytesRead < 0) {
-                                Log.d(TAG, "saw input EOS.");
-                                sawInputEOS = true;
-                                bytesRead = 0;
+                        long presentationTimeUs = System.nanoTime();
 
-                            } else {
-                                // put wav data into inputBuffer for encoding
-                                ByteArrayOutputStream outStream = new ByteArrayOutputStream(bufferSize);
-                                outStream.write(buffer, 0, bytesRead);
-                                inputBuffer.put(outStream.toByteArray());
+                        if (bytesRead < 0) {
+                            Log.d(TAG, "saw input EOS.");
+                            sawInputEOS = true;
+                            bytesRead = 0;
 
-                            }
+                        } else {
+                            // put wav data into inputBuffer for encoding
+                            inputBuffer.put(buffer, 0, bytesRead);
 
-                            // queue new input buffer to encode it
-                            codec.queueInputBuffer(
-                                    inputBufferIndex,
-                                    0,
-                                    bytesRead,
-                                    presentationTimeUs,
-                                    sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0
-                            );
                         }
+
+                        // queue new input buffer to encode it
+                        codec.queueInputBuffer(
+                                inputBufferIndex,
+                                0,
+                                bytesRead,
+                                presentationTimeUs,
+                                sawInputEOS ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0
+                        );
                     }
                 }
+            }
 
 
-                // see if codec has encoded data in a new output buffer
-                int outputBufferIndex = codec.dequeueOutputBuffer(info, QUEUE_TIMEOUT);
-                if (outputBufferIndex >= 0) {
+            // see if codec has encoded data in a new output buffer
+            int outputBufferIndex = codec.dequeueOutputBuffer(info, QUEUE_TIMEOUT);
+            if (outputBufferIndex >= 0) {
 
-                    if (info.size > 0) {
-                        noOutputCounter = 0;
-                    }
+                if (info.size > 0) {
+                    noOutputCounter = 0;
+                }
 
-                    // prepare output buffer including ADTS header
-                    int outBitsSize = info.size;
-                    int outPacketSize = outBitsSize + ADTS_SIZE;
-                    ByteBuffer outputBuffer = codec.getOutputBuffer(outputBufferIndex);
+                // prepare output buffer including ADTS header
+                int outBitsSize = info.size;
+                int outPacketSize = outBitsSize + ADTS_SIZE;
+                ByteBuffer outputBuffer = codec.getOutputBuffer(outputBufferIndex);
 
-                    if (outputBuffer != null) {
-                        // add encoded data to file
-                        drainOutputBuffer(outputStream, info, outBitsSize, outPacketSize, outputBuffer);
-                    }
+                if (outputBuffer != null) {
+                    // add encoded data to file
+                    drainOutputBuffer(outputStream, info, outBitsSize, outPacketSize, outputBuffer);
+                }
 
-                    codec.releaseOutputBuffer(outputBufferIndex, false /* render */);
+                codec.releaseOutputBuffer(outputBufferIndex, false /* render */);
 
-                    if (isEndOfStream(info)) {
-                        Log.d(TAG, "saw output EOS.");
-                        sawOutputEOS = true;
-                    }
+                if (isEndOfStream(info)) {
+                    Log.d(TAG, "saw output EOS.");
+                    sawOutputEOS = true;
                 }
             }
+        }
 
-        } catch (FileNotFoundException e) {
-            Log.e(TAG, "FilePath not found: " + e);
-        } catch (IOException e) {
-            Log.e(TAG, "Could not close FileInputStream: " + e);
+        checkEndOfStream(sawOutputEOS);
+    }
+
+    /**
+     * The loops give up when the codec stops producing output; the stream is truncated then.
+     */
+    private void checkEndOfStream(boolean sawOutputEOS) throws IOException {
+        if (!sawOutputEOS) {
+            throw new IOException("encoder stopped producing output before the end of the stream");
         }
     }
 
     /**
-     * extracts the packet from the outputBuffer, adds an ADTS header and appends the encoded data to
-     * the outputStream (i.e. the encoded aac file).
+     * extracts the packet from the outputBuffer, hands it to the packet sink and, if an ADTS file is written,
+     * adds an ADTS header and appends the encoded data to the outputStream (i.e. the encoded aac file).
      */
-    private void drainOutputBuffer(FileOutputStream outputStream, MediaCodec.BufferInfo info, int outBitsSize, int outPacketSize, ByteBuffer outputBuffer) {
+    private void drainOutputBuffer(OutputSink outputStream, MediaCodec.BufferInfo info, int outBitsSize, int outPacketSize, ByteBuffer outputBuffer) throws IOException {
         // set position and limit of outputBuffer
         outputBuffer.position(info.offset);
         outputBuffer.limit(info.offset + outBitsSize);
 
-        try {
-            // prepare byte array containing encoded data
-            byte[] data = new byte[outPacketSize];
-
-            // add ADTS header to data packet
-            addADTStoPacket(data, outPacketSize);
+        if (isCodecInfo(info)) {
+            // the codec config buffer holds the AudioSpecificConfig for the sample entry
+            mSink.setCodecConfig(outputBuffer);
 
-            // place encoded audio + ADTS header into data array
-            outputBuffer.get(data, ADTS_SIZE, outBitsSize);
+        } else if (!isEndOfStream(info)) {
+            // only real audio data goes into the sink and the file (exclude codec info and EOS info)
+            if (outBitsSize > 0) {
+                mSink.addSample(outputBuffer.duplicate());
+                governTrack();
+            }
 
-            // update outputBuffer position
-            outputBuffer.position(info.offset);
+            if (outputStream != null) {
+                // the sink copies into its own block, so the header array is reused for every packet
+                addADTStoPacket(mAdtsHeader, outPacketSize);
+                outputStream.write(ByteBuffer.wrap(mAdtsHeader));
 
-            // only write real audio data (exclude codec info and EOS info)
-            if (!isCodecInfo(info) && !isEndOfStream(info)) {
-                outputStream.write(data, 0, outPacketSize);
+                // followed by the encoded audio, straight from the codec buffer
+                ByteBuffer packet = outputBuffer.duplicate();
+                while (packet.hasRemaining()) {
+                    outputStream.write(packet);
+                }
             }
+        }
 
-        } catch (IOException e) {
-            Log.e(TAG, "failed writing bit stream data to file");
-            e.printStackTrace();
+        // update outputBuffer position
+        outputBuffer.position(info.offset);
+        outputBuffer.clear();
+    }
 
+    private void governTrack() {
+        if (mGovernor == null || mSink != mTrack) {
+            return;
         }
 
-        outputBuffer.clear();
+        // drop the spare capacity once when pressure starts, then grow in small steps
+        boolean shrink = mGovernor.shouldShrinkBuffers();
+        if (shrink && !mTrackTrimmed) {
+            mTrack.trimToSize();
+        }
+        mTrackTrimmed = shrink;
+        mTrack.setCompactGrowth(shrink);
+        mGovernor.setUsage(MemoryGovernor.USAGE_ENCODER, mTrack.getCapacity());
     }
 
     private boolean isEndOfStream(MediaCodec.BufferInfo info) {
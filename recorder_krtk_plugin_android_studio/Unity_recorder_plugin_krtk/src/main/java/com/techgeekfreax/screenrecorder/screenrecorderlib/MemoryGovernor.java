@@ -0,0 +1,135 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides how recording and post-processing should behave under memory pressure.
+ * The activity forwards onTrimMemory/onLowMemory here, and the encoder and merge report how
+ * much heap they hold. From that the governor tells them whether to shrink their buffers,
+ * defer post-processing, or merge in low-memory mode.
+ * Pressure relaxes one step every {@link #RELAX_INTERVAL_MS} without a new signal, since
+ * Android does not report when memory frees up again.
+ * This class has no Android dependencies, so the policy can be tested with simulated trim levels.
+ */
+public class MemoryGovernor {
+
+    // same values as android.content.ComponentCallbacks2
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    public static final String USAGE_ENCODER = "encoder";
+    public static final String USAGE_MERGE = "merge";
+
+    public static final long RELAX_INTERVAL_MS = 30000;
+
+    public enum Pressure {
+        NONE, MODERATE, LOW, CRITICAL
+    }
+
+    private final long mBudgetBytes;
+    private final Map<String, Long> mUsage = new HashMap<>();
+
+    private Pressure mPressure = Pressure.NONE;
+    private long mPressureSinceMs;
+
+    /**
+     * @param budgetBytes heap the encoder and merge may use together before the governor asks
+     *                    for the low-memory merge even without a trim signal
+     */
+    public MemoryGovernor(long budgetBytes) {
+        this.mBudgetBytes = budgetBytes;
+    }
+
+    public void onTrimMemory(int level) {
+        Pressure pressure;
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            pressure = Pressure.CRITICAL;
+        } else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW) {
+            pressure = Pressure.LOW;
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_MODERATE) {
+            pressure = Pressure.MODERATE;
+        } else {
+            // UI_HIDDEN only means we went to the background, not that memory is short
+            return;
+        }
+        raise(pressure);
+    }
+
+    public void onLowMemory() {
+        raise(Pressure.CRITICAL);
+    }
+
+    private synchronized void raise(Pressure pressure) {
+        Pressure current = getPressure();
+        mPressureSinceMs = currentTimeMillis();
+        if (pressure.compareTo(current) > 0) {
+            mPressure = pressure;
+        }
+    }
+
+    /**
+     * Returns the current pressure, relaxed by one step for every RELAX_INTERVAL_MS since the last signal.
+     */
+    public synchronized Pressure getPressure() {
+        if (mPressure != Pressure.NONE) {
+            long steps = (currentTimeMillis() - mPressureSinceMs) / RELAX_INTERVAL_MS;
+            if (steps > 0) {
+                int ordinal = (int) Math.max(0, mPressure.ordinal() - steps);
+                mPressure = Pressure.values()[ordinal];
+                mPressureSinceMs += steps * RELAX_INTERVAL_MS;
+            }
+        }
+        return mPressure;
+    }
+
+    public synchronized void setUsage(String owner, long bytes) {
+        if (bytes <= 0) {
+            mUsage.remove(owner);
+        } else {
+            mUsage.put(owner, bytes);
+        }
+    }
+
+    public synchronized long getUsage() {
+        long total = 0;
+        for (long bytes : mUsage.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Buffers should stop growing speculatively and give back unused capacity.
+     */
+    public boolean shouldShrinkBuffers() {
+        return getPressure().compareTo(Pressure.MODERATE) >= 0;
+    }
+
+    /**
+     * Post-processing should wait in the background queue instead of starting right away.
+     */
+    public boolean shouldDeferPostProcessing() {
+        return getPressure() == Pressure.CRITICAL;
+    }
+
+    /**
+     * The merge should keep media on disk and write a fragmented file instead of building the
+     * whole movie in memory.
+     */
+    public boolean useLowMemoryMerge() {
+        return getPressure().compareTo(Pressure.LOW) >= 0 || getUsage() > mBudgetBytes;
+    }
+
+    /**
+     * The clock the pressure relaxes by, overridden by tests to simulate time passing.
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+}
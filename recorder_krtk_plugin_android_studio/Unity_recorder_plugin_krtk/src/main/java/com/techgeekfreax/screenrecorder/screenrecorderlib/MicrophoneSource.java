@@ -0,0 +1,103 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Captures the microphone with AudioRecord on its own thread and writes it into a mixer input.
+ * The read buffer is allocated once; the mixer spreads the mono signal to both channels.
+ */
+public class MicrophoneSource {
+
+    private static final String TAG = MicrophoneSource.class.getSimpleName();
+
+    private final AudioMixer.Input mInput;
+    private final int mSampleRate;
+    private final int mReadFrames;
+
+    private AudioRecord mRecord;
+    private Thread mThread;
+    private volatile boolean mRunning;
+
+    public MicrophoneSource(AudioMixer.Input input, int sampleRate, int readFrames) {
+        this.mInput = input;
+        this.mSampleRate = sampleRate;
+        this.mReadFrames = readFrames;
+    }
+
+    /**
+     * Starts capturing. Returns false if the microphone is not available, e.g. without the
+     * RECORD_AUDIO permission; the input is finished then so the mix goes on without it.
+     */
+    public boolean start() {
+        int minBufferSize = AudioRecord.getMinBufferSize(mSampleRate, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            Log.e(TAG, "microphone does not support " + mSampleRate + " Hz");
+            mInput.finish();
+            return false;
+        }
+        try {
+            mRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, mSampleRate, AudioFormat.CHANNEL_IN_MONO,
+                    AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, 4 * mReadFrames * 2));
+            if (mRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                throw new IllegalStateException("AudioRecord not initialized");
+            }
+            mRecord.startRecording();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "could not start microphone: " + e);
+            release();
+            mInput.finish();
+            return false;
+        }
+
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                capture();
+            }
+        }, "MicrophoneSource");
+        mThread.start();
+        return true;
+    }
+
+    private void capture() {
+        short[] buffer = new short[mReadFrames];
+        while (mRunning) {
+            int frames = mRecord.read(buffer, 0, buffer.length);
+            if (frames < 0) {
+                Log.e(TAG, "AudioRecord.read returned " + frames);
+                break;
+            }
+            mInput.write(buffer, 0, frames, 1);
+        }
+        mInput.finish();
+    }
+
+    public void stop() {
+        mRunning = false;
+        if (mThread != null) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+        release();
+    }
+
+    private void release() {
+        if (mRecord != null) {
+            if (mRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+                mRecord.stop();
+            }
+            mRecord.release();
+            mRecord = null;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records the game audio, optionally with the microphone on top, while the screen is recorded.
+ * Unity pushes its audio through {@link #writeGameAudio(float[], int)}, the microphone is captured
+ * by a {@link MicrophoneSource}, and an {@link AudioMixer} combines both. The mix is encoded to AAC
+ * as it is produced, so on stop the track is ready to be merged with the video. With
+ * {@link #setJournal(File, File)} it goes to a checkpointed M4A file instead of the heap, so it
+ * survives a crash.
+ * Game audio must be delivered at {@link MediaEncoder#SAMPLE_RATE}; the mixer only evens out
+ * small clock differences, not a different sample rate.
+ */
+public class MixedAudioRecorder {
+
+    private static final String TAG = MixedAudioRecorder.class.getSimpleName();
+
+    // 1024 frames is one AAC frame, about 21 ms at 48000 Hz
+    private static final int BLOCK_FRAMES = 1024;
+    private static final int MIC_READ_FRAMES = 480;
+    private static final long CHECKPOINT_INTERVAL_MS = 2000;
+
+    private final AudioMixer mMixer;
+    private final AudioMixer.Input mGameInput;
+    private final AudioMixer.Input mMicInput;
+    private final MixerInputStream mStream;
+    private final MediaEncoder mEncoder;
+
+    private MicrophoneSource mMicrophone;
+    private Thread mEncoderThread;
+    private File mJournalFile, mJournalIndexFile;
+    private M4aWriter mWriter;
+    private volatile boolean mEncoded;
+
+    /**
+     * @param micGain gain of the microphone, or 0 to record the game audio only
+     * @param gameSampleRate rate of the game audio, Unity's AudioSettings.outputSampleRate; resampled to the encoder rate
+     */
+    public MixedAudioRecorder(float gameGain, float micGain, int gameSampleRate, MemoryGovernor governor) {
+        this.mMixer = new AudioMixer(MediaEncoder.SAMPLE_RATE, MediaEncoder.CHANNEL_COUNT, BLOCK_FRAMES);
+        this.mGameInput = mMixer.addInput("game", gameGain, gameSampleRate);
+        this.mMicInput = micGain > 0 ? mMixer.addInput("microphone", micGain) : null;
+        this.mStream = new MixerInputStream(mMixer);
+        this.mEncoder = new MediaEncoder();
+        this.mEncoder.setMemoryGovernor(governor);
+    }
+
+    /**
+     * Writes the encoded audio to file, with a sample index checkpoint in indexFile. Call before start().
+     */
+    public void setJournal(File file, File indexFile) {
+        this.mJournalFile = file;
+        this.mJournalIndexFile = indexFile;
+    }
+
+    public void start() {
+        if (mJournalFile != null) {
+            try {
+                // the length is unknown, so the moov is appended at the end; this is only an intermediate
+                mWriter = new M4aWriter(mJournalFile, MediaEncoder.SAMPLE_RATE, MediaEncoder.CHANNEL_COUNT, 0);
+                mWriter.setCheckpoint(mJournalIndexFile, CHECKPOINT_INTERVAL_MS);
+            } catch (IOException e) {
+                Log.e(TAG, "could not create " + mJournalFile + ", keeping the audio in memory: " + e);
+                mWriter = null;
+            }
+        }
+        if (mMicInput != null) {
+            mMicrophone = new MicrophoneSource(mMicInput, MediaEncoder.SAMPLE_RATE, MIC_READ_FRAMES);
+            mMicrophone.start();
+        }
+
+        mEncoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                if (mWriter != null) {
+                    mEncoded = mEncoder.encode(mStream, mWriter);
+                } else {
+                    mEncoded = mEncoder.encode(mStream);
+                }
+            }
+        }, "MixedAudioEncoder");
+        mEncoderThread.start();
+    }
+
+    /**
+     * Interleaved float samples in [-1, 1] at the game sample rate, as Unity hands them to OnAudioFilterRead.
+     */
+    public void writeGameAudio(float[] data, int channels) {
+        mGameInput.write(data, 0, data.length / channels, channels);
+    }
+
+    public void setGameGain(float gain) {
+        mGameInput.setGain(gain);
+    }
+
+    public void setMicGain(float gain) {
+        if (mMicInput != null) {
+            mMicInput.setGain(gain);
+        }
+    }
+
+    /**
+     * Stops the sources, encodes what is still buffered and returns the encoded track, or null
+     * if nothing was recorded or the encoding failed.
+     */
+    public Track stop() {
+        if (mMicrophone != null) {
+            mMicrophone.stop();
+            mMicrophone = null;
+        }
+        mGameInput.finish();
+        mStream.finish();
+
+        if (mEncoderThread != null) {
+            try {
+                mEncoderThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mEncoderThread = null;
+        }
+
+        Log.d(TAG, "mixed " + mMixer.getBlocksMixed() + " blocks, " + mGameInput);
+        if (mMicInput != null) {
+            Log.d(TAG, mMicInput.toString());
+        }
+        if (!mEncoded) {
+            Log.e(TAG, "encoding failed, the audio is incomplete");
+            if (mWriter != null) {
+                // leave the journal unfinished, so the session is kept instead of merged with truncated audio
+                try {
+                    mWriter.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "could not close " + mJournalFile + ": " + e);
+                }
+            }
+            return null;
+        }
+        if (mWriter != null) {
+            return finishJournal();
+        }
+        return mEncoder.getTrack();
+    }
+
+    private Track finishJournal() {
+        try {
+            try {
+                if (mWriter.getSampleCount() == 0) {
+                    return null;
+                }
+                mWriter.finish();
+            } finally {
+                mWriter.close();
+            }
+            return MovieCreator.build(mJournalFile.getAbsolutePath()).getTracks().get(0);
+        } catch (IOException e) {
+            Log.e(TAG, "could not finish " + mJournalFile + ": " + e);
+            return null;
+        }
+    }
+}
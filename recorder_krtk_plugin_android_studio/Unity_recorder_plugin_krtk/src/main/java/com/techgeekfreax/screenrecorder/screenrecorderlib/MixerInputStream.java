@@ -0,0 +1,95 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Presents the output of an {@link AudioMixer} as 16 bit little endian PCM, the format
+ * {@link MediaEncoder} reads from WAV files. A block is mixed whenever the previous one is used
+ * up, paced to real time so the inputs have time to deliver. After {@link #finish()} the remaining
+ * buffered audio is mixed without waiting and then the stream ends.
+ */
+public class MixerInputStream extends InputStream {
+
+    private final AudioMixer mMixer;
+    private final short[] mBlock;
+    private final byte[] mBytes;
+    private final long mBlockNanos;
+
+    private int mBytesPosition;
+    private int mBytesLimit;
+    private long mStartNanos = -1;
+    private volatile boolean mFinishing;
+
+    public MixerInputStream(AudioMixer mixer) {
+        this.mMixer = mixer;
+        this.mBlock = new short[mixer.getBlockFrames() * mixer.getChannelCount()];
+        this.mBytes = new byte[mBlock.length * 2];
+        this.mBlockNanos = mixer.getBlockFrames() * 1000000000L / mixer.getSampleRate();
+    }
+
+    /**
+     * Ends the stream once the inputs are finished and drained.
+     */
+    public void finish() {
+        mFinishing = true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (mBytesPosition == mBytesLimit && !nextBlock()) {
+            return -1;
+        }
+        int count = Math.min(len, mBytesLimit - mBytesPosition);
+        System.arraycopy(mBytes, mBytesPosition, b, off, count);
+        mBytesPosition += count;
+        return count;
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (mFinishing) {
+            if (mMixer.isDrained()) {
+                return false;
+            }
+        } else {
+            waitForBlock();
+        }
+
+        mMixer.mix(mBlock);
+        for (int i = 0; i < mBlock.length; i++) {
+            mBytes[2 * i] = (byte) mBlock[i];
+            mBytes[2 * i + 1] = (byte) (mBlock[i] >> 8);
+        }
+        mBytesPosition = 0;
+        mBytesLimit = mBytes.length;
+        return true;
+    }
+
+    private void waitForBlock() throws IOException {
+        long now = System.nanoTime();
+        if (mStartNanos < 0) {
+            mStartNanos = now;
+        }
+        // a block is due once its whole duration has been captured by the sources
+        long due = mStartNanos + (mMixer.getBlocksMixed() + 1) * mBlockNanos;
+        while (now < due && !mFinishing) {
+            try {
+                long wait = due - now;
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for audio");
+            }
+            now = System.nanoTime();
+        }
+    }
+}
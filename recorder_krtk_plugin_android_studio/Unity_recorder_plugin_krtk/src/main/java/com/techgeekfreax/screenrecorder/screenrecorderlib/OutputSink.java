@@ -0,0 +1,68 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Destination for the files we produce (ADTS audio, M4A, merged MP4). Data is appended with
+ * write(); writeAt() patches bytes that were already appended, e.g. a box size that is only
+ * known at the end. Implementations decide how the data is buffered and when it reaches flash.
+ */
+public interface OutputSink extends WritableByteChannel {
+
+    /**
+     * Returns the number of bytes appended so far, i.e. the offset of the next write().
+     */
+    long position();
+
+    /**
+     * Overwrites already appended bytes starting at position. The range must end at or before position().
+     */
+    void writeAt(ByteBuffer src, long position) throws IOException;
+
+    /**
+     * Reads already appended bytes starting at position until dst is full. The range must end at or before position().
+     */
+    void readAt(ByteBuffer dst, long position) throws IOException;
+
+    /**
+     * Blocks until everything appended so far has been handed to the file system.
+     */
+    void flush() throws IOException;
+
+    /**
+     * Flushes and forces the data to the storage device.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Like sync(), but does not wait for the device. onSynced runs once everything appended so far
+     * is forced, on whichever thread did the force; it does not run if writing or forcing failed.
+     */
+    void syncAsync(Runnable onSynced) throws IOException;
+
+    Stats getStats();
+
+    class Stats {
+        public final long bytesWritten;
+        public final long bytesPerSecond;
+        public final int queueDepth;
+        public final int maxQueueDepth;
+        public final int syncCount;
+
+        public Stats(long bytesWritten, long bytesPerSecond, int queueDepth, int maxQueueDepth, int syncCount) {
+            this.bytesWritten = bytesWritten;
+            this.bytesPerSecond = bytesPerSecond;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.syncCount = syncCount;
+        }
+
+        @Override
+        public String toString() {
+            return "written=" + bytesWritten + " bytes, " + (bytesPerSecond / 1024) + " KB/s, queue=" + queueDepth
+                    + " (max " + maxQueueDepth + "), syncs=" + syncCount;
+        }
+    }
+}
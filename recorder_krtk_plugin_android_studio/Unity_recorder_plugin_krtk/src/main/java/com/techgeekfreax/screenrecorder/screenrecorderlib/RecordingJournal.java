@@ -0,0 +1,238 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Keeps the intermediates of one recording session in their own directory, together with a
+ * small state file, so a session interrupted by a crash can be finished on the next launch.
+ * The video is recorded in segments that are each complete MP4 files, the live audio as an M4A
+ * with a checkpoint index (see {@link M4aCheckpoint}). The state file lists the finished video
+ * segments and is replaced atomically on every change, so it is always either the old or the
+ * new version.
+ * A session belongs to the process that started or recovered it until it is completed, so looking
+ * for unfinished sessions again (e.g. when the activity is recreated) never returns a live one.
+ * This class has no Android dependencies.
+ */
+public class RecordingJournal {
+
+    public static final String STATE_RECORDING = "recording";
+    public static final String STATE_STOPPED = "stopped";
+
+    private static final String STATE_FILE = "journal.properties";
+    private static final String AUDIO_FILE = "audio.m4a";
+    private static final String AUDIO_INDEX_FILE = "audio.idx";
+    private static final String WAV_FILE = "sound.wav";
+    private static final String SEGMENT_PREFIX = "video";
+
+    private static final String KEY_STATE = "state";
+    private static final String KEY_SEGMENT_COUNT = "segments";
+    private static final String KEY_SEGMENT = "segment.";
+    private static final String KEY_OUTPUT = "output";
+
+    // directories of the sessions this process started or is recovering
+    private static final Set<String> sClaimed = Collections.synchronizedSet(new HashSet<String>());
+
+    private final File mDir;
+    private final List<String> mSegments = new ArrayList<>();
+    private String mState;
+    private String mOutput;
+    private int mNextSegment;
+
+    private RecordingJournal(File dir) {
+        this.mDir = dir;
+    }
+
+    /**
+     * Starts a new session in a fresh directory under sessionsDir.
+     */
+    public static RecordingJournal begin(File sessionsDir) throws IOException {
+        File dir = new File(sessionsDir, "session_" + System.currentTimeMillis());
+        int i = 1;
+        while (dir.exists()) {
+            dir = new File(sessionsDir, "session_" + System.currentTimeMillis() + "_" + i++);
+        }
+        if (!dir.mkdirs()) {
+            throw new IOException("could not create " + dir);
+        }
+        sClaimed.add(dir.getAbsolutePath());
+        RecordingJournal journal = new RecordingJournal(dir);
+        journal.mState = STATE_RECORDING;
+        journal.save();
+        return journal;
+    }
+
+    /**
+     * Returns the sessions under sessionsDir that were never completed, oldest first, and claims
+     * them for the caller. Sessions this process already owns are skipped.
+     */
+    public static List<RecordingJournal> findUnfinished(File sessionsDir) {
+        List<RecordingJournal> journals = new ArrayList<>();
+        File[] dirs = sessionsDir.listFiles();
+        if (dirs == null) {
+            return journals;
+        }
+        Arrays.sort(dirs);
+        for (File dir : dirs) {
+            File stateFile = new File(dir, STATE_FILE);
+            if (!dir.isDirectory() || !stateFile.exists() || !sClaimed.add(dir.getAbsolutePath())) {
+                continue;
+            }
+            try {
+                journals.add(load(dir));
+            } catch (IOException e) {
+                // unreadable state, nothing we can recover from it
+                delete(dir);
+                sClaimed.remove(dir.getAbsolutePath());
+            }
+        }
+        return journals;
+    }
+
+    private static RecordingJournal load(File dir) throws IOException {
+        Properties properties = new Properties();
+        InputStream is = new FileInputStream(new File(dir, STATE_FILE));
+        try {
+            properties.load(is);
+        } finally {
+            is.close();
+        }
+
+        RecordingJournal journal = new RecordingJournal(dir);
+        journal.mState = properties.getProperty(KEY_STATE, STATE_RECORDING);
+        journal.mOutput = properties.getProperty(KEY_OUTPUT);
+        int count = Integer.parseInt(properties.getProperty(KEY_SEGMENT_COUNT, "0"));
+        for (int i = 0; i < count; i++) {
+            journal.mSegments.add(properties.getProperty(KEY_SEGMENT + i));
+        }
+        journal.mNextSegment = count;
+        return journal;
+    }
+
+    private synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(KEY_STATE, mState);
+        if (mOutput != null) {
+            properties.setProperty(KEY_OUTPUT, mOutput);
+        }
+        properties.setProperty(KEY_SEGMENT_COUNT, String.valueOf(mSegments.size()));
+        for (int i = 0; i < mSegments.size(); i++) {
+            properties.setProperty(KEY_SEGMENT + i, mSegments.get(i));
+        }
+
+        // write a new file and rename it over the old one, the rename is atomic
+        File tmp = new File(mDir, STATE_FILE + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            properties.store(os, "recording journal");
+            os.flush();
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(new File(mDir, STATE_FILE))) {
+            throw new IOException("could not replace the journal state in " + mDir);
+        }
+    }
+
+    public File getDirectory() {
+        return mDir;
+    }
+
+    public synchronized String getState() {
+        return mState;
+    }
+
+    /**
+     * File for the next video segment. It only counts once {@link #segmentFinished(File)} is called.
+     */
+    public synchronized File nextVideoSegment() {
+        return new File(mDir, SEGMENT_PREFIX + mNextSegment++ + ".mp4");
+    }
+
+    /**
+     * Records that the recorder has finalized the segment, i.e. written its moov.
+     */
+    public synchronized void segmentFinished(File segment) throws IOException {
+        if (!mSegments.contains(segment.getName())) {
+            mSegments.add(segment.getName());
+            save();
+        }
+    }
+
+    public synchronized List<File> getVideoSegments() {
+        List<File> segments = new ArrayList<>();
+        for (String name : mSegments) {
+            segments.add(new File(mDir, name));
+        }
+        return segments;
+    }
+
+    public File getAudioFile() {
+        return new File(mDir, AUDIO_FILE);
+    }
+
+    public File getAudioIndexFile() {
+        return new File(mDir, AUDIO_INDEX_FILE);
+    }
+
+    /**
+     * Where the recorded WAV is kept once the session is stopped, so the next session cannot overwrite it.
+     */
+    public File getWavFile() {
+        return new File(mDir, WAV_FILE);
+    }
+
+    /**
+     * Recording is over and all segments are finished; only post-processing is left.
+     */
+    public synchronized void stopped() throws IOException {
+        mState = STATE_STOPPED;
+        save();
+    }
+
+    /**
+     * Remembers the final file, so a recovery writes to the same place.
+     */
+    public synchronized void setOutput(File output) throws IOException {
+        mOutput = output.getAbsolutePath();
+        save();
+    }
+
+    public synchronized File getOutput() {
+        return mOutput != null ? new File(mOutput) : null;
+    }
+
+    /**
+     * The session is complete, removes its directory with all intermediates.
+     */
+    public void complete() {
+        delete(mDir);
+        sClaimed.remove(mDir.getAbsolutePath());
+    }
+
+    private static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Override
+    public String toString() {
+        return mDir.getName() + " (" + mState + ", " + mSegments.size() + " video segments)";
+    }
+}
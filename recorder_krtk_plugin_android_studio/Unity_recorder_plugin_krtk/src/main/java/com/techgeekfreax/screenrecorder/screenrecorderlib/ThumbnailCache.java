@@ -0,0 +1,157 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Disk cache for the thumbnail and preview strip of each recording, so the gallery can show
+ * them without opening the video. Entries are keyed by the identity of the video file (path,
+ * length and modification time), so a changed or replaced file never gets a stale thumbnail.
+ * When the cache grows beyond its budget the least recently used entries are removed.
+ * This class has no Android dependencies.
+ */
+public class ThumbnailCache {
+
+    public static final String THUMBNAIL = "thumbnail.jpg";
+    public static final String STRIP = "strip.jpg";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mDir;
+    private final long mMaxBytes;
+
+    public ThumbnailCache(File dir, long maxBytes) {
+        this.mDir = dir;
+        this.mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cache key of the video in its current state.
+     */
+    public static String key(File video) {
+        String identity = video.getAbsolutePath() + "|" + video.length() + "|" + video.lastModified();
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(identity.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < 12; i++) {
+                key.append(String.format("%02x", digest[i]));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached thumbnail of the video, or null if there is none.
+     */
+    public File getThumbnail(File video) {
+        return get(video, THUMBNAIL);
+    }
+
+    /**
+     * Returns the cached preview strip of the video, or null if there is none.
+     */
+    public File getStrip(File video) {
+        return get(video, STRIP);
+    }
+
+    private synchronized File get(File video, String name) {
+        File entry = new File(mDir, key(video));
+        File file = new File(entry, name);
+        if (!file.exists()) {
+            return null;
+        }
+        // the modification time of the entry is its last use
+        entry.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Returns an empty directory to write the files of a new entry into, see {@link #commit(File, File)}.
+     */
+    public synchronized File begin(File video) throws IOException {
+        File tmp = new File(mDir, key(video) + TMP_SUFFIX);
+        delete(tmp);
+        if (!tmp.mkdirs()) {
+            throw new IOException("could not create " + tmp);
+        }
+        return tmp;
+    }
+
+    /**
+     * Publishes the files written to tmp as the entry of the video and evicts old entries.
+     * The video must not have changed since {@link #begin(File)}.
+     */
+    public synchronized void commit(File video, File tmp) throws IOException {
+        File entry = new File(mDir, key(video));
+        delete(entry);
+        if (!tmp.renameTo(entry)) {
+            delete(tmp);
+            throw new IOException("could not publish " + entry);
+        }
+        evict();
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits its budget.
+     */
+    public synchronized void evict() {
+        File[] entries = mDir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long total = 0;
+        for (File entry : entries) {
+            total += size(entry);
+        }
+        if (total <= mMaxBytes) {
+            return;
+        }
+
+        Arrays.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File entry : entries) {
+            if (total <= mMaxBytes) {
+                break;
+            }
+            if (entry.getName().endsWith(TMP_SUFFIX)) {
+                // an entry that is being written right now
+                continue;
+            }
+            total -= size(entry);
+            delete(entry);
+        }
+    }
+
+    private static long size(File entry) {
+        File[] files = entry.listFiles();
+        if (files == null) {
+            return entry.length();
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static void delete(File entry) {
+        File[] files = entry.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        entry.delete();
+    }
+}
@@ -0,0 +1,236 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Turns the {@link VideoKeyframes} picked during the merge into a thumbnail and a preview strip
+ * in the {@link ThumbnailCache}. Decoding runs on a low priority background thread; only the
+ * picked keyframes are decoded, the video file is never read.
+ */
+public class ThumbnailGenerator {
+
+    private static final String TAG = ThumbnailGenerator.class.getSimpleName();
+
+    private static final String MIME_TYPE = "video/avc";
+    private static final long QUEUE_TIMEOUT = 10000;
+    // give up if the decoder makes no progress for this many dequeue attempts
+    private static final int MAX_IDLE_TRIES = 100;
+
+    private static final int THUMBNAIL_WIDTH = 320;
+    private static final int STRIP_FRAME_HEIGHT = 90;
+    private static final int JPEG_QUALITY = 85;
+
+    public interface Listener {
+        void onThumbnailsReady(File video);
+    }
+
+    private final ThumbnailCache mCache;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "Thumbnails");
+        }
+    });
+
+    public ThumbnailGenerator(ThumbnailCache cache) {
+        this.mCache = cache;
+    }
+
+    /**
+     * Queues the thumbnails of video, which must be completely written, from its keyframes.
+     */
+    public void submit(final File video, final VideoKeyframes keyframes, final Listener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    generate(video, keyframes);
+                    if (listener != null) {
+                        listener.onThumbnailsReady(video);
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "could not create thumbnails for " + video, e);
+                }
+            }
+        });
+    }
+
+    private void generate(File video, VideoKeyframes keyframes) throws IOException {
+        long start = System.currentTimeMillis();
+        int count = keyframes.frames.size();
+        if (count == 0) {
+            return;
+        }
+
+        int thumbHeight = Math.max(1, THUMBNAIL_WIDTH * keyframes.height / keyframes.width);
+        int stripFrameWidth = Math.max(1, STRIP_FRAME_HEIGHT * keyframes.width / keyframes.height);
+        final int middle = count / 2;
+        Bitmap thumbnail = null;
+        Bitmap strip = null;
+        try {
+            thumbnail = Bitmap.createBitmap(THUMBNAIL_WIDTH, thumbHeight, Bitmap.Config.ARGB_8888);
+            strip = Bitmap.createBitmap(stripFrameWidth * count, STRIP_FRAME_HEIGHT, Bitmap.Config.ARGB_8888);
+            final int[] thumbPixels = new int[THUMBNAIL_WIDTH * thumbHeight];
+            final int[] stripPixels = new int[stripFrameWidth * STRIP_FRAME_HEIGHT];
+
+            int decoded = 0;
+            boolean hasThumbnail = false;
+            MediaCodec codec = MediaCodec.createDecoderByType(MIME_TYPE);
+            try {
+                MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, keyframes.width, keyframes.height);
+                format.setByteBuffer("csd-0", ByteBuffer.wrap(keyframes.sps));
+                format.setByteBuffer("csd-1", ByteBuffer.wrap(keyframes.pps));
+                format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+                codec.configure(format, null, null, 0);
+                codec.start();
+
+                MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                int queued = 0;
+                boolean inputDone = false;
+                int idleTries = 0;
+                while (idleTries < MAX_IDLE_TRIES) {
+                    idleTries++;
+
+                    if (!inputDone) {
+                        int inputIndex = codec.dequeueInputBuffer(QUEUE_TIMEOUT);
+                        if (inputIndex >= 0) {
+                            ByteBuffer input = codec.getInputBuffer(inputIndex);
+                            if (queued < count && input != null) {
+                                byte[] frame = keyframes.frames.get(queued);
+                                input.clear();
+                                input.put(frame);
+                                // the frame index as timestamp tells us which frame comes out
+                                codec.queueInputBuffer(inputIndex, 0, frame.length, queued, 0);
+                                queued++;
+                            } else {
+                                codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                                inputDone = true;
+                            }
+                            idleTries = 0;
+                        }
+                    }
+
+                    int outputIndex = codec.dequeueOutputBuffer(info, QUEUE_TIMEOUT);
+                    if (outputIndex >= 0) {
+                        idleTries = 0;
+                        if (info.size > 0) {
+                            Image image = codec.getOutputImage(outputIndex);
+                            int index = (int) info.presentationTimeUs;
+                            if (image != null && index >= 0 && index < count) {
+                                scale(image, stripPixels, stripFrameWidth, STRIP_FRAME_HEIGHT);
+                                strip.setPixels(stripPixels, 0, stripFrameWidth, index * stripFrameWidth, 0, stripFrameWidth, STRIP_FRAME_HEIGHT);
+                                // the middle frame, or any frame until the middle one is decoded
+                                if (index == middle || !hasThumbnail) {
+                                    scale(image, thumbPixels, THUMBNAIL_WIDTH, thumbHeight);
+                                    thumbnail.setPixels(thumbPixels, 0, THUMBNAIL_WIDTH, 0, 0, THUMBNAIL_WIDTH, thumbHeight);
+                                    hasThumbnail = true;
+                                }
+                                decoded++;
+                            }
+                            if (image != null) {
+                                image.close();
+                            }
+                        }
+                        codec.releaseOutputBuffer(outputIndex, false);
+                        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                            break;
+                        }
+                    }
+                }
+            } finally {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException e) {
+                    // configure or start failed, there is nothing to stop
+                }
+                codec.release();
+            }
+
+            if (decoded == 0) {
+                Log.w(TAG, "no keyframe of " + video + " could be decoded");
+                return;
+            }
+            File entry = mCache.begin(video);
+            writeJpeg(thumbnail, new File(entry, ThumbnailCache.THUMBNAIL));
+            writeJpeg(strip, new File(entry, ThumbnailCache.STRIP));
+            mCache.commit(video, entry);
+            Log.d(TAG, decoded + "/" + count + " keyframes of " + video + " in " + (System.currentTimeMillis() - start) + " ms");
+        } finally {
+            // free the pixels right away, also when decoding or writing failed
+            if (thumbnail != null) {
+                thumbnail.recycle();
+            }
+            if (strip != null) {
+                strip.recycle();
+            }
+        }
+    }
+
+    /**
+     * Samples the YUV 420 image down to width x height ARGB pixels (nearest neighbour, BT.601).
+     * Only the output pixels are converted, so this is cheap even for full screen frames.
+     */
+    private static void scale(Image image, int[] pixels, int width, int height) {
+        Rect crop = image.getCropRect();
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer yPlane = planes[0].getBuffer();
+        ByteBuffer uPlane = planes[1].getBuffer();
+        ByteBuffer vPlane = planes[2].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+
+        for (int y = 0; y < height; y++) {
+            int sy = crop.top + y * crop.height() / height;
+            for (int x = 0; x < width; x++) {
+                int sx = crop.left + x * crop.width() / width;
+                int luma = (yPlane.get(sy * yRowStride + sx * yPixelStride) & 0xFF) - 16;
+                int uvOffset = (sy / 2) * uvRowStride + (sx / 2) * uvPixelStride;
+                int u = (uPlane.get(uvOffset) & 0xFF) - 128;
+                int v = (vPlane.get(uvOffset) & 0xFF) - 128;
+
+                int c = 1192 * Math.max(0, luma);
+                int r = clamp((c + 1634 * v) >> 10);
+                int g = clamp((c - 833 * v - 400 * u) >> 10);
+                int b = clamp((c + 2066 * u) >> 10);
+                pixels[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static void writeJpeg(Bitmap bitmap, File file) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, os);
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import com.coremedia.iso.boxes.sampleentry.AbstractSampleEntry;
+import com.coremedia.iso.boxes.sampleentry.VisualSampleEntry;
+import com.googlecode.mp4parser.authoring.Track;
+import com.mp4parser.iso14496.part15.AvcConfigurationBox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sync samples of an H.264 track, picked at fixed intervals while the track is muxed anyway, in
+ * the Annex B form a decoder takes. Each one decodes on its own, so thumbnails can be made from
+ * them without reading the video file again.
+ * This class has no Android dependencies.
+ */
+public class VideoKeyframes {
+
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    public final int width;
+    public final int height;
+    public final byte[] sps;
+    public final byte[] pps;
+    public final List<byte[]> frames = new ArrayList<>();
+
+    private VideoKeyframes(int width, int height, byte[] sps, byte[] pps) {
+        this.width = width;
+        this.height = height;
+        this.sps = sps;
+        this.pps = pps;
+    }
+
+    /**
+     * Picks up to count sync samples, the one closest to the middle of each of count equal
+     * intervals. Returns null if the track is not H.264 or has no samples.
+     */
+    public static VideoKeyframes pick(Track track, int count) {
+        AbstractSampleEntry sampleEntry = track.getSampleDescriptionBox().getSampleEntry();
+        if (!(sampleEntry instanceof VisualSampleEntry)) {
+            return null;
+        }
+        List<AvcConfigurationBox> avcConfigs = sampleEntry.getBoxes(AvcConfigurationBox.class);
+        if (avcConfigs.isEmpty() || avcConfigs.get(0).getSequenceParameterSets().isEmpty()
+                || avcConfigs.get(0).getPictureParameterSets().isEmpty()) {
+            return null;
+        }
+        AvcConfigurationBox avcC = avcConfigs.get(0);
+        VisualSampleEntry visual = (VisualSampleEntry) sampleEntry;
+        VideoKeyframes keyframes = new VideoKeyframes(visual.getWidth(), visual.getHeight(),
+                withStartCode(avcC.getSequenceParameterSets().get(0)), withStartCode(avcC.getPictureParameterSets().get(0)));
+
+        long[] durations = track.getSampleDurations();
+        if (durations.length == 0) {
+            return null;
+        }
+        long[] startTimes = new long[durations.length];
+        for (int i = 1; i < durations.length; i++) {
+            startTimes[i] = startTimes[i - 1] + durations[i - 1];
+        }
+        long duration = startTimes[durations.length - 1] + durations[durations.length - 1];
+
+        // 1-based sample numbers; no stss means every sample is a sync sample
+        long[] syncSamples = track.getSyncSamples();
+        int syncCount = syncSamples != null ? syncSamples.length : durations.length;
+
+        int lengthSize = avcC.getLengthSizeMinusOne() + 1;
+        int previous = -1;
+        int sync = 0;
+        for (int i = 0; i < count; i++) {
+            long target = (2 * i + 1) * duration / (2 * count);
+            // sync samples are sorted, so the search continues where the previous one stopped
+            while (sync + 1 < syncCount && startTimes[sampleIndex(syncSamples, sync + 1)] <= target) {
+                sync++;
+            }
+            int index = sampleIndex(syncSamples, sync);
+            if (sync + 1 < syncCount) {
+                int next = sampleIndex(syncSamples, sync + 1);
+                if (startTimes[next] - target < target - startTimes[index]) {
+                    index = next;
+                }
+            }
+            if (index == previous) {
+                continue;
+            }
+            previous = index;
+
+            ByteBuffer sample = track.getSamples().get(index).asByteBuffer();
+            keyframes.frames.add(toAnnexB(sample, lengthSize));
+        }
+        return keyframes;
+    }
+
+    private static int sampleIndex(long[] syncSamples, int sync) {
+        return syncSamples != null ? (int) syncSamples[sync] - 1 : sync;
+    }
+
+    private static byte[] withStartCode(byte[] nal) {
+        byte[] result = new byte[START_CODE.length + nal.length];
+        System.arraycopy(START_CODE, 0, result, 0, START_CODE.length);
+        System.arraycopy(nal, 0, result, START_CODE.length, nal.length);
+        return result;
+    }
+
+    /**
+     * MP4 stores NAL units with a length prefix, decoders expect them behind start codes.
+     */
+    static byte[] toAnnexB(ByteBuffer sample, int lengthSize) {
+        ByteBuffer in = sample.duplicate();
+        int nalCount = 0;
+        int payload = 0;
+        while (in.remaining() > lengthSize) {
+            int length = readLength(in, lengthSize);
+            if (length < 0 || length > in.remaining()) {
+                break;
+            }
+            in.position(in.position() + length);
+            nalCount++;
+            payload += length;
+        }
+
+        byte[] out = new byte[payload + nalCount * START_CODE.length];
+        in = sample.duplicate();
+        int position = 0;
+        for (int i = 0; i < nalCount; i++) {
+            int length = readLength(in, lengthSize);
+            System.arraycopy(START_CODE, 0, out, position, START_CODE.length);
+            in.get(out, position + START_CODE.length, length);
+            position += START_CODE.length + length;
+        }
+        return out;
+    }
+
+    private static int readLength(ByteBuffer in, int lengthSize) {
+        int length = 0;
+        for (int i = 0; i < lengthSize; i++) {
+            length = (length << 8) | (in.get() & 0xFF);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,478 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output sink that coalesces small writes into large, aligned blocks and writes them on a
+ * background I/O thread, so the encoder and the muxer never wait on flash for each packet.
+ * The file is preallocated to the expected size up front and trimmed on close. Data is forced
+ * to the device every syncIntervalBytes, and no later than syncIntervalMs after it was written,
+ * also when nothing else is written after it. {@link #syncAsync(Runnable)} queues the force behind
+ * the data, so the writing thread does not wait for it.
+ * Only one thread may write to a sink at a time; the I/O thread is internal.
+ */
+public class WriteBehindOutputSink implements OutputSink {
+
+    private static final String TAG = WriteBehindOutputSink.class.getSimpleName();
+
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_QUEUED_BLOCKS = 8;
+    public static final long DEFAULT_SYNC_INTERVAL_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 2000;
+
+    private static final int ALIGNMENT = 4096;
+
+    private static final class Block {
+        final byte[] data;
+        final Runnable onSynced;    // set on sync barriers, which carry no data
+        int length;
+        long position;
+
+        Block(int size) {
+            this(size, null);
+        }
+
+        Block(int size, Runnable onSynced) {
+            this.data = new byte[size];
+            this.onSynced = onSynced;
+        }
+    }
+
+    private static final Block CLOSE = new Block(0);
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mBlockSize;
+    private final int mMaxBlocks;
+    private final long mSyncIntervalBytes;
+    private final long mSyncIntervalMs;
+
+    private final ArrayBlockingQueue<Block> mQueue;
+    private final ArrayBlockingQueue<Block> mFreeBlocks;
+    private final Thread mIoThread;
+
+    // touched by the writing thread only
+    private Block mCurrent;
+    private long mPosition;
+    private int mAllocatedBlocks;
+    private boolean mOpen = true;
+
+    private volatile IOException mFailure;
+
+    // shared with the I/O thread, guarded by mLock
+    private final Object mLock = new Object();
+    private int mPending;
+    private int mMaxQueueDepth;
+    private long mBytesWritten;
+    private long mIoTimeNs;
+    private int mSyncCount;
+    private long mBytesSinceSync;
+    private long mBytesMarked;
+    // when the oldest data that is not forced to the device yet was written, 0 if there is none
+    private long mDirtySinceMs;
+
+    public WriteBehindOutputSink(File file, long expectedSize) throws IOException {
+        this(file, expectedSize, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_QUEUED_BLOCKS, DEFAULT_SYNC_INTERVAL_BYTES, DEFAULT_SYNC_INTERVAL_MS);
+    }
+
+    /**
+     * @param expectedSize      bytes to preallocate, 0 to skip preallocation
+     * @param blockSize         size of the coalesced writes, rounded up to a multiple of 4 KB
+     * @param maxQueuedBlocks   blocks that may wait for the I/O thread before write() blocks
+     * @param syncIntervalBytes force to the device after this many bytes, 0 to disable
+     * @param syncIntervalMs    force to the device after this much time, 0 to disable
+     */
+    public WriteBehindOutputSink(File file, long expectedSize, int blockSize, int maxQueuedBlocks,
+                                 long syncIntervalBytes, long syncIntervalMs) throws IOException {
+        this.mBlockSize = Math.max(ALIGNMENT, (blockSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+        this.mMaxBlocks = Math.max(1, maxQueuedBlocks) + 2;    // plus the block being filled and a flush copy
+        this.mSyncIntervalBytes = syncIntervalBytes;
+        this.mSyncIntervalMs = syncIntervalMs;
+
+        this.mFile = new RandomAccessFile(file, "rw");
+        this.mFile.setLength(0);
+        this.mChannel = mFile.getChannel();
+        preallocate(expectedSize);
+
+        this.mQueue = new ArrayBlockingQueue<>(mMaxBlocks + 1);
+        this.mFreeBlocks = new ArrayBlockingQueue<>(mMaxBlocks);
+        this.mCurrent = takeFreeBlock();
+
+        this.mIoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainQueue();
+            }
+        }, "WriteBehind-" + file.getName());
+        this.mIoThread.start();
+    }
+
+    private void preallocate(long expectedSize) {
+        if (expectedSize <= 0) {
+            return;
+        }
+        try {
+            // reserves the blocks up front, so the file system does not have to find space per write
+            Os.posix_fallocate(mFile.getFD(), 0, expectedSize);
+        } catch (ErrnoException | IOException e) {
+            Log.d(TAG, "preallocation not supported: " + e);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        checkOpen();
+        int count = src.remaining();
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), mBlockSize - mCurrent.length);
+            src.get(mCurrent.data, mCurrent.length, length);
+            mCurrent.length += length;
+            mPosition += length;
+
+            if (mCurrent.length == mBlockSize) {
+                submit(mCurrent);
+                mCurrent = takeFreeBlock();
+                mCurrent.position = mPosition;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long position() {
+        return mPosition;
+    }
+
+    @Override
+    public void writeAt(ByteBuffer src, long position) throws IOException {
+        int length = src.remaining();
+        if (position < 0 || position + length > mPosition) {
+            throw new IllegalArgumentException("writeAt " + position + "+" + length + " is beyond " + mPosition);
+        }
+        flush();
+
+        // the I/O thread is idle now, so we can write the patch ourselves
+        ByteBuffer disk = src.duplicate();
+        while (disk.hasRemaining()) {
+            mChannel.write(disk, position + disk.position() - src.position());
+        }
+        synchronized (mLock) {
+            markDirty(length);
+        }
+
+        // the block being filled gets written again in full, so patch it too
+        long overlapStart = Math.max(position, mCurrent.position);
+        long overlapEnd = Math.min(position + length, mCurrent.position + mCurrent.length);
+        if (overlapStart < overlapEnd) {
+            ByteBuffer part = src.duplicate();
+            part.position(src.position() + (int) (overlapStart - position));
+            part.get(mCurrent.data, (int) (overlapStart - mCurrent.position), (int) (overlapEnd - overlapStart));
+        }
+        src.position(src.limit());
+    }
+
+    @Override
+    public void readAt(ByteBuffer dst, long position) throws IOException {
+        if (position < 0 || position + dst.remaining() > mPosition) {
+            throw new IllegalArgumentException("readAt " + position + "+" + dst.remaining() + " is beyond " + mPosition);
+        }
+        // once flushed, the file holds everything appended, including the block being filled
+        flush();
+        long offset = position - dst.position();
+        while (dst.hasRemaining()) {
+            if (mChannel.read(dst, offset + dst.position()) < 0) {
+                throw new EOFException("file ends before " + (offset + dst.limit()));
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        checkOpen();
+        submitCurrent();
+        awaitPending();
+        throwIfFailed();
+    }
+
+    @Override
+    public void sync() throws IOException {
+        flush();
+        long covered = beginSync();
+        long startMs = System.currentTimeMillis();
+        mChannel.force(false);
+        synchronized (mLock) {
+            onSynced(covered, startMs);
+        }
+    }
+
+    @Override
+    public void syncAsync(Runnable onSynced) throws IOException {
+        checkOpen();
+        submitCurrent();
+        // the I/O thread forces once it reaches the barrier, i.e. after everything queued before it
+        submit(new Block(0, onSynced));
+    }
+
+    @Override
+    public Stats getStats() {
+        synchronized (mLock) {
+            long bytesPerSecond = mIoTimeNs > 0 ? mBytesWritten * 1000000000L / mIoTimeNs : 0;
+            return new Stats(mBytesWritten, bytesPerSecond, mQueue.size(), mMaxQueueDepth, mSyncCount);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return mOpen;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!mOpen) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            mOpen = false;
+            try {
+                mQueue.put(CLOSE);
+                mIoThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                // drop whatever was preallocated beyond the data
+                mChannel.truncate(mPosition);
+                long covered = beginSync();
+                long startMs = System.currentTimeMillis();
+                mChannel.force(true);
+                synchronized (mLock) {
+                    onSynced(covered, startMs);
+                }
+            } finally {
+                mChannel.close();
+                mFile.close();
+            }
+        }
+        throwIfFailed();
+    }
+
+    private void submitCurrent() throws IOException {
+        if (mCurrent.length > 0) {
+            // write what we have but keep filling the block, it is rewritten in full at the same aligned offset
+            Block copy = takeFreeBlock();
+            System.arraycopy(mCurrent.data, 0, copy.data, 0, mCurrent.length);
+            copy.length = mCurrent.length;
+            copy.position = mCurrent.position;
+            submit(copy);
+        }
+    }
+
+    private void submit(Block block) throws IOException {
+        synchronized (mLock) {
+            mPending++;
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size() + 1);
+        }
+        try {
+            mQueue.put(block);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while queueing a block");
+        }
+    }
+
+    private Block takeFreeBlock() throws IOException {
+        Block block = mFreeBlocks.poll();
+        if (block == null) {
+            if (mAllocatedBlocks < mMaxBlocks) {
+                mAllocatedBlocks++;
+                return new Block(mBlockSize);
+            }
+            try {
+                // all blocks are queued, wait for the I/O thread to give one back
+                block = mFreeBlocks.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for a free block");
+            }
+        }
+        block.length = 0;
+        block.position = 0;
+        return block;
+    }
+
+    private void awaitPending() throws IOException {
+        synchronized (mLock) {
+            while (mPending > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while flushing");
+                }
+            }
+        }
+    }
+
+    private void drainQueue() {
+        while (true) {
+            Block block;
+            try {
+                // wake up for the time-based sync even when nothing more is written
+                block = mQueue.poll(msUntilSyncDue(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (block == null) {
+                syncIfDue();
+                continue;
+            }
+            if (block == CLOSE) {
+                return;
+            }
+
+            try {
+                if (mFailure == null) {
+                    if (block.onSynced != null) {
+                        syncBarrier(block.onSynced);
+                    } else {
+                        writeBlock(block);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "write failed: " + e);
+                mFailure = e;
+            } finally {
+                if (block.onSynced == null) {
+                    mFreeBlocks.offer(block);
+                }
+                synchronized (mLock) {
+                    mPending--;
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void writeBlock(Block block) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer buffer = ByteBuffer.wrap(block.data, 0, block.length);
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer, block.position + buffer.position());
+        }
+
+        boolean sync;
+        long covered;
+        synchronized (mLock) {
+            markDirty(block.length);
+            sync = (mSyncIntervalBytes > 0 && mBytesSinceSync >= mSyncIntervalBytes) || msUntilSyncDue() == 0;
+            covered = mBytesMarked;
+        }
+        long startMs = System.currentTimeMillis();
+        if (sync) {
+            mChannel.force(false);
+        }
+
+        synchronized (mLock) {
+            mBytesWritten += block.length;
+            mIoTimeNs += System.nanoTime() - start;
+            if (sync) {
+                onSynced(covered, startMs);
+            }
+        }
+    }
+
+    /**
+     * Forces everything written before the barrier and runs its callback, on the I/O thread.
+     */
+    private void syncBarrier(Runnable callback) throws IOException {
+        long covered = beginSync();
+        long startMs = System.currentTimeMillis();
+        mChannel.force(false);
+        synchronized (mLock) {
+            onSynced(covered, startMs);
+        }
+        callback.run();
+    }
+
+    /**
+     * Forces the data to the device if the time-based sync is due, called by the I/O thread when idle.
+     */
+    private void syncIfDue() {
+        long covered;
+        synchronized (mLock) {
+            if (mDirtySinceMs == 0 || msUntilSyncDue() > 0) {
+                return;
+            }
+            covered = mBytesMarked;
+        }
+        try {
+            long startMs = System.currentTimeMillis();
+            mChannel.force(false);
+            synchronized (mLock) {
+                onSynced(covered, startMs);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "sync failed: " + e);
+            mFailure = e;
+        }
+    }
+
+    private long msUntilSyncDue() {
+        synchronized (mLock) {
+            if (mSyncIntervalMs <= 0 || mDirtySinceMs == 0 || mFailure != null) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(0, mDirtySinceMs + mSyncIntervalMs - System.currentTimeMillis());
+        }
+    }
+
+    private void markDirty(long bytes) {
+        if (mDirtySinceMs == 0 && bytes > 0) {
+            mDirtySinceMs = System.currentTimeMillis();
+        }
+        mBytesSinceSync += bytes;
+        mBytesMarked += bytes;
+    }
+
+    private long beginSync() {
+        synchronized (mLock) {
+            return mBytesMarked;
+        }
+    }
+
+    /**
+     * A force that started at startMs made the first covered bytes durable. Whatever was written
+     * while it ran may not be, so that stays dirty, as if written at startMs.
+     */
+    private void onSynced(long covered, long startMs) {
+        mSyncCount++;
+        mBytesSinceSync = mBytesMarked - covered;
+        mDirtySinceMs = mBytesSinceSync > 0 ? startMs : 0;
+    }
+
+    private void checkOpen() throws IOException {
+        if (!mOpen) {
+            throw new ClosedChannelException();
+        }
+        throwIfFailed();
+    }
+
+    private void throwIfFailed() throws IOException {
+        IOException failure = mFailure;
+        if (failure != null) {
+            throw new IOException("background write failed", failure);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.coremedia.iso;
+
+import com.coremedia.iso.boxes.Box;
+import com.coremedia.iso.boxes.FreeBox;
+import com.coremedia.iso.boxes.FreeSpaceBox;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the generated {@link DefaultBoxRegistry} against the reflective lookup over the same
+ * properties, which is what the parser did before the registry existed.
+ */
+public class PropertyBoxParserImplTest {
+
+    private static final String CUSTOM = "custom-boxes.properties";
+
+    private static Properties load(InputStream is) throws Exception {
+        Properties properties = new Properties();
+        try {
+            properties.load(is);
+        } finally {
+            is.close();
+        }
+        return properties;
+    }
+
+    private static Properties defaults() throws Exception {
+        return load(new FileInputStream(new File("src/assets/isoparser-default.properties")));
+    }
+
+    @Test
+    public void registryMatchesReflectiveLookup() throws Exception {
+        Properties defaults = defaults();
+        assertSameBoxes(defaults, new PropertyBoxParserImpl(), new PropertyBoxParserImpl(defaults));
+    }
+
+    @Test
+    public void customPropertiesMatchMergedLookup() throws Exception {
+        Properties merged = defaults();
+        merged.putAll(load(PropertyBoxParserImpl.class.getResourceAsStream(CUSTOM)));
+        assertSameBoxes(merged, new PropertyBoxParserImpl(CUSTOM), new PropertyBoxParserImpl(merged));
+    }
+
+    @Test
+    public void customLookupOrder() {
+        PropertyBoxParserImpl parser = new PropertyBoxParserImpl(CUSTOM);
+        // the type key is looked up before parent-type, whichever file it comes from
+        assertEquals(FreeBox.class, parser.createBox("free", null, "moov").getClass());
+        assertEquals(FreeBox.class, parser.createBox("skip", null, "moov").getClass());
+        assertEquals(FreeSpaceBox.class, parser.createBox("zzzz", null, "moov").getClass());
+    }
+
+    @Test
+    public void missingCustomPropertiesFailWithTheirName() {
+        try {
+            new PropertyBoxParserImpl("missing-boxes.properties");
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("missing-boxes.properties"));
+        }
+    }
+
+    /**
+     * Creates a box for every key of mapping with both parsers and expects the same class, or the
+     * same exception for classes that cannot be loaded.
+     */
+    private static void assertSameBoxes(Properties mapping, PropertyBoxParserImpl actual, PropertyBoxParserImpl expected) {
+        Set<String> failing = new HashSet<>();
+        for (String key : mapping.stringPropertyNames()) {
+            String type = key;
+            String parent = "moov";
+            byte[] userType = null;
+            int dash = key.indexOf('-');
+            if (dash > 0) {
+                parent = key.substring(0, dash);
+                type = key.substring(dash + 1);
+            }
+            if (type.startsWith("uuid[")) {
+                userType = decodeHex(type.substring(5, type.length() - 1));
+                type = "uuid";
+            } else if (type.equals("uuid")) {
+                userType = new byte[16];
+            }
+
+            String expectedResult = describe(expected, type, userType, parent);
+            assertEquals(key, expectedResult, describe(actual, type, userType, parent));
+            if (expectedResult.startsWith("!")) {
+                failing.add(key);
+            }
+        }
+        // the six OmaDrm boxes named in the defaults are not in the isoparser jar
+        assertEquals(new HashSet<>(Arrays.asList("udta-ccid", "udta-icnu", "udta-infu", "udta-cvru", "udta-lrcu", "odkm")),
+                failing);
+    }
+
+    private static String describe(PropertyBoxParserImpl parser, String type, byte[] userType, String parent) {
+        try {
+            Box box = parser.createBox(type, userType, parent);
+            return box.getClass().getName();
+        } catch (RuntimeException e) {
+            return "!" + (e.getCause() != null ? e.getCause().getClass().getName() : e.getMessage());
+        }
+    }
+
+    private static byte[] decodeHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,308 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AudioMixerTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK = 1024;
+    // about 3.5 minutes of audio, long enough for the smoothed fill to settle
+    private static final int DRIFT_BLOCKS = 10000;
+    // bytes the allocation counter and timer may allocate themselves
+    private static final long MEASUREMENT_ALLOWANCE = 2048;
+
+    /**
+     * Feeds one input at ppm faster (or slower) than the mixer consumes it and returns the input.
+     */
+    private static AudioMixer.Input runWithDrift(double ppm) {
+        AudioMixer mixer = new AudioMixer(SAMPLE_RATE, CHANNELS, BLOCK);
+        AudioMixer.Input input = mixer.addInput("source", 1f);
+        float[] chunk = new float[BLOCK * 2 * CHANNELS];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (float) (0.5 * Math.sin(i * 0.01));
+        }
+        short[] out = new short[BLOCK * CHANNELS];
+
+        double pending = 0;
+        int maxBuffered = 0;
+        for (int block = 0; block < DRIFT_BLOCKS; block++) {
+            pending += BLOCK * (1 + ppm / 1000000);
+            int frames = (int) pending;
+            pending -= frames;
+            input.write(chunk, 0, frames, CHANNELS);
+            mixer.mix(out);
+            if (block > DRIFT_BLOCKS / 10) {
+                maxBuffered = Math.max(maxBuffered, input.getBufferedFrames());
+            }
+        }
+        // the buffer level is held near the target instead of running full or empty
+        assertTrue("buffer grew to " + maxBuffered, maxBuffered < 4 * BLOCK);
+        return input;
+    }
+
+    @Test
+    public void compensatesFasterSource() {
+        AudioMixer.Input input = runWithDrift(800);
+        assertEquals(800, input.getDriftPpm(), 300);
+        assertEquals(0, input.getOverrunFrames());
+        assertEquals(0, input.getUnderrunFrames());
+    }
+
+    @Test
+    public void compensatesSlowerSource() {
+        AudioMixer.Input input = runWithDrift(-800);
+        assertEquals(-800, input.getDriftPpm(), 300);
+        assertEquals(0, input.getOverrunFrames());
+        assertEquals(0, input.getUnderrunFrames());
+    }
+
+    @Test
+    public void noCorrectionWithoutDrift() {
+        AudioMixer.Input input = runWithDrift(0);
+        assertEquals(0, input.getDriftPpm(), 1);
+    }
+
+    @Test
+    public void inputJoinsOnceTargetIsBuffered() {
+        AudioMixer mixer = new AudioMixer(SAMPLE_RATE, CHANNELS, BLOCK);
+        AudioMixer.Input input = mixer.addInput("source", 1f);
+        short[] out = new short[BLOCK * CHANNELS];
+
+        input.write(constant(BLOCK, 0.5f), 0, BLOCK, 1);
+        mixer.mix(out);
+        // not started yet, so nothing is consumed and nothing counts as an underrun
+        assertEquals(BLOCK, input.getBufferedFrames());
+        assertEquals(0, input.getUnderrunFrames());
+        assertEquals(0, out[0]);
+    }
+
+    @Test
+    public void countsUnderrunFrames() {
+        AudioMixer mixer = new AudioMixer(SAMPLE_RATE, CHANNELS, BLOCK);
+        AudioMixer.Input input = mixer.addInput("source", 1f);
+        short[] out = new short[BLOCK * CHANNELS];
+
+        input.write(constant(2 * BLOCK, 0.5f), 0, 2 * BLOCK, 1);
+        mixer.mix(out);
+        mixer.mix(out);
+        assertEquals(0, input.getUnderrunFrames());
+
+        // the source stalls: the third block has no data and is silent
+        mixer.mix(out);
+        assertEquals(BLOCK, input.getUnderrunFrames());
+        assertEquals(0, out[0]);
+        assertEquals(0, out[out.length - 1]);
+
+        // half a block arrives, the rest of the block is silent; the smoothed level is still
+        // above the stretch threshold, so a full block is asked for
+        input.write(constant(BLOCK / 2, 0.5f), 0, BLOCK / 2, 1);
+        mixer.mix(out);
+        assertEquals(BLOCK + BLOCK / 2, input.getUnderrunFrames());
+        assertEquals(0.5f * Short.MAX_VALUE, out[0], 2);
+        assertEquals(0, out[out.length - 1]);
+    }
+
+    @Test
+    public void countsOverrunFrames() {
+        AudioMixer mixer = new AudioMixer(SAMPLE_RATE, CHANNELS, BLOCK);
+        AudioMixer.Input input = mixer.addInput("source", 1f);
+
+        // the ring holds 16 blocks, the mixer is not reading
+        int frames = 20 * BLOCK;
+        input.write(constant(frames, 0.1f), 0, frames, 1);
+        assertEquals(16 * BLOCK, input.getBufferedFrames());
+        assertEquals(4 * BLOCK, input.getOverrunFrames());
+
+        input.write(new short[2 * BLOCK], 0, BLOCK, 2);
+        assertEquals(5 * BLOCK, input.getOverrunFrames());
+    }
+
+    @Test
+    public void softClipLimits() {
+        // linear up to the knee
+        assertEquals(0.5f, AudioMixer.softClip(0.5f), 0f);
+        assertEquals(0.8f, AudioMixer.softClip(0.8f), 0f);
+        assertEquals(-0.8f, AudioMixer.softClip(-0.8f), 0f);
+
+        // bent towards full scale, never beyond it, and monotonic
+        float previous = 0.8f;
+        for (float x = 0.81f; x < 20f; x += 0.01f) {
+            float y = AudioMixer.softClip(x);
+            assertTrue("softClip(" + x + ") = " + y, y <= 1f && y >= previous && y < x);
+            assertEquals(-y, AudioMixer.softClip(-x), 0f);
+            previous = y;
+        }
+        assertEquals(1f, AudioMixer.softClip(1e6f), 1e-6f);
+        assertEquals(-1f, AudioMixer.softClip(-1e6f), 1e-6f);
+    }
+
+    @Test
+    public void loudMixIsCompressedInsteadOfWrapping() {
+        AudioMixer mixer = new AudioMixer(SAMPLE_RATE, CHANNELS, BLOCK);
+        AudioMixer.Input game = mixer.addInput("game", 1f);
+        AudioMixer.Input mic = mixer.addInput("microphone", 1f);
+        short[] out = new short[BLOCK * CHANNELS];
+
+        game.write(constant(2 * BLOCK, 0.9f), 0, 2 * BLOCK, 1);
+        mic.write(constant(2 * BLOCK, 0.9f), 0, 2 * BLOCK, 1);
+        mixer.mix(out);
+        short expected = (short) (AudioMixer.softClip(1.8f) * Short.MAX_VALUE);
+        for (short sample : out) {
+            assertEquals(expected, sample, 2);
+        }
+        assertTrue(out[0] > 0.95f * Short.MAX_VALUE);
+    }
+
+    @Test
+    public void appliesGainAndSpreadsMono() {
+        AudioMixer mixer = new AudioMixer(SAMPLE_RATE, CHANNELS, BLOCK);
+        AudioMixer.Input input = mixer.addInput("microphone", 0.5f);
+        short[] out = new short[BLOCK * CHANNELS];
+
+        input.write(constant(2 * BLOCK, 0.6f), 0, 2 * BLOCK, 1);
+        mixer.mix(out);
+        assertEquals(0.3f * Short.MAX_VALUE, out[0], 2);
+        assertEquals(out[0], out[1]);
+
+        input.setGain(0f);
+        mixer.mix(out);
+        assertEquals(0, out[0]);
+    }
+
+    @Test
+    public void finishedInputDrains() {
+        AudioMixer mixer = new AudioMixer(SAMPLE_RATE, CHANNELS, BLOCK);
+        AudioMixer.Input input = mixer.addInput("source", 1f);
+        short[] out = new short[BLOCK * CHANNELS];
+
+        // less than the target, but finished inputs join right away
+        input.write(constant(BLOCK + 10, 0.5f), 0, BLOCK + 10, 1);
+        input.finish();
+        mixer.mix(out);
+        assertFalse(mixer.isDrained());
+        mixer.mix(out);
+        assertTrue(mixer.isDrained());
+    }
+
+    @Test
+    public void resamplesInputAtAnotherRate() {
+        AudioMixer mixer = new AudioMixer(SAMPLE_RATE, CHANNELS, BLOCK);
+        AudioMixer.Input input = mixer.addInput("game", 1f, 44100);
+        short[] out = new short[BLOCK * CHANNELS];
+
+        // Unity at 44.1 kHz delivers 1024 frame buffers, a 1 kHz tone
+        float[] chunk = new float[BLOCK * CHANNELS];
+        long frame = 0;
+        int written = 0;
+        int blocks = 0;
+        long positiveCrossings = 0;
+        short previous = 0;
+        while (blocks < 500) {
+            for (int i = 0; i < BLOCK; i++, frame++) {
+                chunk[2 * i] = chunk[2 * i + 1] = (float) (0.5 * Math.sin(2 * Math.PI * 1000 * frame / 44100));
+            }
+            input.write(chunk, 0, BLOCK, CHANNELS);
+            written += BLOCK;
+            // the mixer consumes 48 kHz blocks at the same wall clock rate
+            while ((long) (blocks + 1) * BLOCK * 44100 <= (long) written * SAMPLE_RATE) {
+                mixer.mix(out);
+                blocks++;
+                if (blocks > 100) {
+                    for (int i = 0; i < BLOCK; i++) {
+                        short sample = out[2 * i];
+                        if (previous < 0 && sample >= 0) {
+                            positiveCrossings++;
+                        }
+                        previous = sample;
+                    }
+                }
+            }
+        }
+        // 1000 periods a second at the mixer rate, i.e. the pitch is kept
+        double seconds = (blocks - 101) * (double) BLOCK / SAMPLE_RATE;
+        assertEquals(1000, positiveCrossings / seconds, 5);
+        assertEquals(0, input.getDriftPpm(), 300);
+        assertEquals(0, input.getUnderrunFrames());
+        assertEquals(0, input.getOverrunFrames());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidInputRate() {
+        new AudioMixer(SAMPLE_RATE, CHANNELS, BLOCK).addInput("game", 1f, 0);
+    }
+
+    /**
+     * Mixing speed of a game plus microphone mix, and proof that the hot path does not allocate.
+     * Only runs with -Dbenchmark=true and on a JVM that reports per-thread allocation.
+     */
+    @Test
+    public void benchmarkMixWithoutAllocation() {
+        Assume.assumeTrue("benchmark not requested", Boolean.getBoolean("benchmark"));
+        Assume.assumeTrue("per-thread allocation not reported", allocatedBytes() >= 0);
+
+        AudioMixer mixer = new AudioMixer(SAMPLE_RATE, CHANNELS, BLOCK);
+        AudioMixer.Input game = mixer.addInput("game", 1f);
+        AudioMixer.Input mic = mixer.addInput("microphone", 0.8f);
+        float[] gameAudio = new float[BLOCK * CHANNELS];
+        short[] micAudio = new short[BLOCK];
+        for (int i = 0; i < BLOCK; i++) {
+            gameAudio[2 * i] = gameAudio[2 * i + 1] = (float) (0.7 * Math.sin(i * 0.01));
+            micAudio[i] = (short) (20000 * Math.sin(i * 0.03));
+        }
+        short[] out = new short[BLOCK * CHANNELS];
+
+        // warm up so the JIT is done before measuring
+        for (int block = 0; block < 10000; block++) {
+            mixBlock(mixer, game, mic, gameAudio, micAudio, out);
+        }
+
+        int blocks = 20000;
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int block = 0; block < blocks; block++) {
+            mixBlock(mixer, game, mic, gameAudio, micAudio, out);
+        }
+        long elapsedNs = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        // one byte per block would already be 20000; the rest is the measurement itself
+        assertTrue(allocated + " bytes allocated by " + blocks + " blocks", allocated <= MEASUREMENT_ALLOWANCE);
+        // real time is BLOCK / SAMPLE_RATE, about 21 ms per block, the mix has to be far below it
+        assertTrue(elapsedNs / blocks + " ns per block", elapsedNs / blocks < 1000000000L * BLOCK / SAMPLE_RATE / 10);
+    }
+
+    private static void mixBlock(AudioMixer mixer, AudioMixer.Input game, AudioMixer.Input mic,
+                                 float[] gameAudio, short[] micAudio, short[] out) {
+        game.write(gameAudio, 0, BLOCK, CHANNELS);
+        mic.write(micAudio, 0, BLOCK, 1);
+        mixer.mix(out);
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static short[] constant(int frames, float level) {
+        short[] samples = new short[frames];
+        for (int i = 0; i < frames; i++) {
+            samples[i] = (short) (level * Short.MAX_VALUE);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,144 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the selection logic against the sweep of a 1080x2280 device in the form the paced
+ * measurement reports it (src/test/resources/calibration_pixel3a.properties). Its full size at
+ * 60 fps fell behind at 41.3 fps, everything else was sustainable.
+ */
+public class CalibrationProfileTest {
+
+    private static final String MODEL = "Pixel 3a";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private CalibrationProfile mProfile;
+
+    @Before
+    public void loadRecordedProfile() throws Exception {
+        File file = new File(getClass().getResource("/calibration_pixel3a.properties").toURI());
+        mProfile = CalibrationProfile.load(file, MODEL);
+        assertNotNull(mProfile);
+    }
+
+    @Test
+    public void loadsRecordedEntries() {
+        assertEquals(MODEL, mProfile.getModel());
+        assertEquals(20000000, mProfile.getMaxBitRate());
+        assertEquals(6, mProfile.getEntries().size());
+
+        CalibrationProfile.Entry fullSize60 = mProfile.getEntries().get(0);
+        assertEquals(1072, fullSize60.width);
+        assertEquals(2272, fullSize60.height);
+        assertEquals(60, fullSize60.fps);
+        assertFalse(fullSize60.isSustainable());
+        assertTrue(mProfile.getEntries().get(1).isSustainable());
+    }
+
+    @Test
+    public void loadIgnoresOtherModelsAndMissingFiles() throws Exception {
+        File file = new File(getClass().getResource("/calibration_pixel3a.properties").toURI());
+        assertNull(CalibrationProfile.load(file, "SM-G973F"));
+        assertNull(CalibrationProfile.load(new File(mFolder.getRoot(), "missing.properties"), MODEL));
+    }
+
+    @Test
+    public void saveAndLoadRoundTrip() throws Exception {
+        File file = mFolder.newFile("calibration.properties");
+        mProfile.save(file);
+        CalibrationProfile loaded = CalibrationProfile.load(file, MODEL);
+
+        assertEquals(mProfile.getEntries().size(), loaded.getEntries().size());
+        for (int i = 0; i < mProfile.getEntries().size(); i++) {
+            assertEquals(mProfile.getEntries().get(i).serialize(), loaded.getEntries().get(i).serialize());
+        }
+    }
+
+    @Test
+    public void recommendsHighestSustainablePixelRate() {
+        // 1072x2272@30 is sustainable too, but 800x1696@60 moves more pixels
+        CalibrationProfile.Entry entry = mProfile.recommend(CalibrationProfile.QUALITY_HIGH);
+        assertEquals(800, entry.width);
+        assertEquals(1696, entry.height);
+        assertEquals(60, entry.fps);
+        assertEquals(CalibrationProfile.bitRateFor(800, 1696, 60, CalibrationProfile.QUALITY_HIGH), entry.bitRate);
+    }
+
+    @Test
+    public void recommendCapsBitRateWhenNothingFits() {
+        CalibrationProfile profile = new CalibrationProfile(MODEL, 1000000);
+        for (CalibrationProfile.Entry entry : mProfile.getEntries()) {
+            profile.addEntry(entry);
+        }
+
+        // no sustainable entry fits 1 Mbit/s, so the cheapest one is capped
+        CalibrationProfile.Entry entry = profile.recommend(CalibrationProfile.QUALITY_MEDIUM);
+        assertEquals(528, entry.width);
+        assertEquals(30, entry.fps);
+        assertEquals(1000000, entry.bitRate);
+    }
+
+    @Test
+    public void recommendReturnsNullWithoutSustainableEntries() {
+        CalibrationProfile profile = new CalibrationProfile(MODEL, 20000000);
+        profile.addEntry(mProfile.getEntries().get(0));
+        assertNull(profile.recommend(CalibrationProfile.QUALITY_LOW));
+    }
+
+    @Test
+    public void sustainableFpsOfMeasuredConfiguration() {
+        assertEquals(41, mProfile.sustainableFps(1072, 2272, 60));
+        assertEquals(30, mProfile.sustainableFps(1072, 2272, 30));
+        assertEquals(60, mProfile.sustainableFps(800, 1696, 60));
+    }
+
+    @Test
+    public void sustainableFpsScalesUnmeasuredSizesByPixelRate() {
+        // below the sustainable 800x1696@60
+        assertEquals(60, mProfile.sustainableFps(1280, 720, 60));
+        // between the proven and the failed pixel rate, nothing says it cannot be reached
+        assertEquals(30, mProfile.sustainableFps(1080, 2280, 30));
+        // above the 41.3 fps the encoder managed at full size
+        assertEquals(48, mProfile.sustainableFps(1080, 1920, 60));
+    }
+
+    @Test
+    public void pacedMeasurementsNeverExceedTheRequestedFps() {
+        for (CalibrationProfile.Entry entry : mProfile.getEntries()) {
+            assertTrue(entry.serialize(), entry.achievedFps <= entry.fps);
+        }
+    }
+
+    @Test
+    public void sustainableSizeKeepsMeasuredAndSmallerSizes() {
+        assertArrayEquals(new int[]{800, 1696}, mProfile.sustainableSize(800, 1696, 60));
+        assertArrayEquals(new int[]{1072, 2272}, mProfile.sustainableSize(1072, 2272, 30));
+    }
+
+    @Test
+    public void sustainableSizeShrinksToTheMeasuredPixelRate() {
+        // 41.3 fps at 1072x2272 is about 100.6 Mpixel/s, 1080x2280@60 needs 147.7
+        int[] size = mProfile.sustainableSize(1080, 2280, 60);
+        assertArrayEquals(new int[]{880, 1872}, size);
+        assertEquals(60, mProfile.sustainableFps(size[0], size[1], 60));
+    }
+
+    @Test
+    public void sustainableFpsWithoutEntriesKeepsRequest() {
+        assertEquals(60, new CalibrationProfile(MODEL, 20000000).sustainableFps(1920, 1080, 60));
+    }
+}
@@ -0,0 +1,110 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import com.coremedia.iso.boxes.SampleDescriptionBox;
+import com.coremedia.iso.boxes.sampleentry.AudioSampleEntry;
+import com.googlecode.mp4parser.boxes.mp4.ESDescriptorBox;
+import com.googlecode.mp4parser.boxes.mp4.objectdescriptors.DecoderConfigDescriptor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class EncodedAacTrackTest {
+
+    // AAC LC, 48 kHz, stereo
+    private static final byte[] CODEC_CONFIG = {0x11, (byte) 0x90};
+
+    private static ByteBuffer packet(int size, int fill) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (fill + i);
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static DecoderConfigDescriptor decoderConfig(SampleDescriptionBox box) {
+        AudioSampleEntry entry = (AudioSampleEntry) box.getSampleEntry();
+        ESDescriptorBox esds = entry.getBoxes(ESDescriptorBox.class).get(0);
+        return esds.getEsDescriptor().getDecoderConfigDescriptor();
+    }
+
+    @Test
+    public void sampleDurationsDefaultToOneFrame() {
+        EncodedAacTrack track = new EncodedAacTrack(48000, 2);
+        track.addSample(packet(100, 0));
+        track.addSample(packet(120, 0), 512);
+        track.addSample(packet(90, 0));
+
+        assertArrayEquals(new long[]{1024, 512, 1024}, track.getSampleDurations());
+        assertEquals(512, track.getSampleDuration(1));
+        assertEquals(2560, track.getDuration());
+        assertEquals(48000, track.getTrackMetaData().getTimescale());
+    }
+
+    @Test
+    public void sampleDescriptionFollowsTheSamples() throws Exception {
+        EncodedAacTrack track = new EncodedAacTrack(48000, 2);
+        track.setCodecConfig(ByteBuffer.wrap(CODEC_CONFIG));
+        track.addSample(packet(300, 0));
+        track.addSample(packet(500, 0));
+
+        SampleDescriptionBox box = track.getSampleDescriptionBox();
+        assertSame(box, track.getSampleDescriptionBox());
+        AudioSampleEntry entry = (AudioSampleEntry) box.getSampleEntry();
+        assertEquals("mp4a", entry.getType());
+        assertEquals(2, entry.getChannelCount());
+        assertEquals(48000, entry.getSampleRate());
+
+        DecoderConfigDescriptor config = decoderConfig(box);
+        assertEquals(0x40, config.getObjectTypeIndication());
+        assertEquals(1536, config.getBufferSizeDB());
+        assertEquals(500L * 8 * 48000 / 1024, config.getMaxBitRate());
+        assertEquals(800L * 8 * 48000 / 2048, config.getAvgBitRate());
+        assertEquals(2, config.getAudioSpecificInfo().getChannelConfiguration());
+
+        // a new sample changes the bit rates, so the box is built again
+        track.addSample(packet(2000, 0));
+        SampleDescriptionBox grown = track.getSampleDescriptionBox();
+        assertNotSame(box, grown);
+        assertEquals(2000, decoderConfig(grown).getBufferSizeDB());
+        assertEquals(2800L * 8 * 48000 / 3072, decoderConfig(grown).getAvgBitRate());
+    }
+
+    @Test
+    public void missingCodecConfigFallsBackToAacLc() {
+        EncodedAacTrack track = new EncodedAacTrack(44100, 1);
+        track.addSample(packet(100, 0));
+
+        DecoderConfigDescriptor config = decoderConfig(track.getSampleDescriptionBox());
+        assertEquals(1, config.getAudioSpecificInfo().getChannelConfiguration());
+    }
+
+    @Test
+    public void trimToSizeKeepsTheSamples() {
+        EncodedAacTrack track = new EncodedAacTrack(48000, 2);
+        for (int i = 0; i < 10; i++) {
+            track.addSample(packet(50 + i, i), 1024 - i);
+        }
+        assertEquals(545, track.getDataSize());
+
+        track.trimToSize();
+        assertEquals(545 + 12 * 10, track.getCapacity());
+        assertEquals(10, track.getSampleCount());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(50 + i, track.getSampleSize(i));
+            assertEquals(1024 - i, track.getSampleDuration(i));
+            assertEquals(packet(50 + i, i), track.getSampleData(i));
+        }
+
+        // the trimmed arrays grow again
+        track.addSample(packet(70, 10));
+        assertEquals(11, track.getSamples().size());
+        assertEquals(packet(70, 10), track.getSampleData(10));
+        assertEquals(615, track.getDataSize());
+    }
+}
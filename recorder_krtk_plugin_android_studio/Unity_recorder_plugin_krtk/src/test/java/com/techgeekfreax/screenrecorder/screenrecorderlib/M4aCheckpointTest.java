@@ -0,0 +1,78 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class M4aCheckpointTest {
+
+    private static final byte[] CODEC_CONFIG = {0x11, (byte) 0x90};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File writeIndex(int records) throws Exception {
+        File file = mFolder.newFile();
+        M4aCheckpoint checkpoint = new M4aCheckpoint(file, 48000, 2, 32, 4096, 4128, CODEC_CONFIG);
+        int[] sizes = new int[10];
+        for (int record = 0; record < records; record++) {
+            for (int i = 0; i < sizes.length; i++) {
+                sizes[i] = 300 + record * 10 + i;
+            }
+            checkpoint.append(sizes, 0, sizes.length, 5000L * (record + 1));
+        }
+        checkpoint.close();
+        return file;
+    }
+
+    @Test
+    public void readsCompleteRecords() throws Exception {
+        M4aCheckpoint.State state = M4aCheckpoint.read(writeIndex(3));
+        assertEquals(48000, state.sampleRate);
+        assertEquals(2, state.channelCount);
+        assertEquals(4096, state.reservedSize);
+        assertEquals(4128, state.mdatOffset);
+        assertEquals(CODEC_CONFIG.length, state.codecConfig.length);
+        assertEquals(30, state.sampleCount);
+        assertEquals(329, state.sizes[29]);
+        assertEquals(15000, state.dataEnd);
+    }
+
+    @Test
+    public void ignoresTornRecord() throws Exception {
+        File file = writeIndex(3);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        M4aCheckpoint.State state = M4aCheckpoint.read(file);
+        assertEquals(20, state.sampleCount);
+        assertEquals(10000, state.dataEnd);
+    }
+
+    @Test
+    public void hugeCountDoesNotAllocate() throws Exception {
+        File file = writeIndex(2);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        // a torn count, followed by garbage
+        raf.writeInt(Integer.MAX_VALUE);
+        raf.write(new byte[64]);
+        raf.close();
+
+        M4aCheckpoint.State state = M4aCheckpoint.read(file);
+        assertEquals(20, state.sampleCount);
+        assertEquals(1024, state.sizes.length);
+    }
+
+    @Test
+    public void rejectsMissingHeader() throws Exception {
+        assertNull(M4aCheckpoint.read(mFolder.newFile()));
+    }
+}
@@ -0,0 +1,115 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import com.coremedia.iso.IsoFile;
+import com.coremedia.iso.boxes.Box;
+import com.googlecode.mp4parser.authoring.Sample;
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class M4aWriterTest {
+
+    // AAC LC, 48 kHz, stereo
+    private static final byte[] CODEC_CONFIG = {0x11, (byte) 0x90};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void checkpointsFollowTheSyncedData() throws Exception {
+        File audio = mFolder.newFile("audio.m4a");
+        File index = mFolder.newFile("audio.idx");
+        M4aWriter writer = new M4aWriter(audio, 48000, 2, 1000);
+        writer.setCheckpoint(index, Long.MAX_VALUE);
+        writer.setCodecConfig(ByteBuffer.wrap(CODEC_CONFIG));
+
+        long dataSize = 0;
+        for (int i = 0; i < 450; i++) {
+            int size = 200 + i % 50;
+            writer.addSample(ByteBuffer.allocate(size));
+            dataSize += size;
+            if (i % 100 == 99) {
+                writer.checkpoint();
+            }
+        }
+        // the process dies here, without finish(); the last 50 samples were never checkpointed
+        writer.close();
+
+        M4aCheckpoint.State state = M4aCheckpoint.read(index);
+        assertEquals(400, state.sampleCount);
+        for (int i = 0; i < state.sampleCount; i++) {
+            assertEquals(200 + i % 50, state.sizes[i]);
+        }
+        assertTrue(state.dataEnd < state.mdatOffset + 8 + dataSize);
+
+        assertTrue(M4aWriter.recover(audio, index));
+    }
+
+    @Test
+    public void moovThatDoesNotFitIsMovedToTheFront() throws Exception {
+        File audio = mFolder.newFile("long.m4a");
+        // far more samples than expected, so the moov outgrows the reserved space
+        M4aWriter writer = new M4aWriter(audio, 48000, 2, 10);
+        writer.setCodecConfig(ByteBuffer.wrap(CODEC_CONFIG));
+        for (int i = 0; i < 5000; i++) {
+            writer.addSample(sample(i));
+        }
+        assertTrue(writer.finish());
+        writer.close();
+
+        IsoFile isoFile = new IsoFile(audio.getAbsolutePath());
+        List<String> types = new ArrayList<>();
+        for (Box box : isoFile.getBoxes()) {
+            types.add(box.getType());
+        }
+        isoFile.close();
+        assertEquals("moov", types.get(1));
+        assertEquals("mdat", types.get(types.size() - 1));
+
+        Track track = MovieCreator.build(audio.getAbsolutePath()).getTracks().get(0);
+        List<Sample> samples = track.getSamples();
+        assertEquals(5000, samples.size());
+        for (int i = 0; i < samples.size(); i += 97) {
+            assertEquals(sample(i), samples.get(i).asByteBuffer());
+        }
+        assertEquals(sample(4999), samples.get(4999).asByteBuffer());
+    }
+
+    @Test
+    public void journaledFileKeepsMdatWhereTheIndexSays() throws Exception {
+        File audio = mFolder.newFile("journal.m4a");
+        File index = mFolder.newFile("journal.idx");
+        M4aWriter writer = new M4aWriter(audio, 48000, 2, 0);
+        writer.setCheckpoint(index, 0);
+        writer.setCodecConfig(ByteBuffer.wrap(CODEC_CONFIG));
+        for (int i = 0; i < 5000; i++) {
+            writer.addSample(sample(i));
+        }
+        assertFalse(writer.finish());
+        writer.close();
+
+        Track track = MovieCreator.build(audio.getAbsolutePath()).getTracks().get(0);
+        assertEquals(5000, track.getSamples().size());
+        assertEquals(sample(1234), track.getSamples().get(1234).asByteBuffer());
+    }
+
+    private static ByteBuffer sample(int index) {
+        byte[] data = new byte[100 + index % 200];
+        Arrays.fill(data, (byte) index);
+        data[0] = (byte) (index >> 8);
+        return ByteBuffer.wrap(data);
+    }
+}
@@ -0,0 +1,170 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the governor with simulated trim levels on a fake clock.
+ */
+public class MemoryGovernorTest {
+
+    private static final long BUDGET = 64 * 1024 * 1024;
+
+    private static class TestGovernor extends MemoryGovernor {
+        long now = 1000000;
+
+        TestGovernor(long budgetBytes) {
+            super(budgetBytes);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    private TestGovernor mGovernor;
+
+    @Before
+    public void setUp() {
+        mGovernor = new TestGovernor(BUDGET);
+    }
+
+    private void advance(long ms) {
+        mGovernor.now += ms;
+    }
+
+    @Test
+    public void noPressureByDefault() {
+        assertEquals(MemoryGovernor.Pressure.NONE, mGovernor.getPressure());
+        assertFalse(mGovernor.shouldShrinkBuffers());
+        assertFalse(mGovernor.shouldDeferPostProcessing());
+        assertFalse(mGovernor.useLowMemoryMerge());
+    }
+
+    @Test
+    public void trimLevelsMapToPressure() {
+        int[] levels = {
+                MemoryGovernor.TRIM_MEMORY_RUNNING_MODERATE,
+                MemoryGovernor.TRIM_MEMORY_RUNNING_LOW,
+                MemoryGovernor.TRIM_MEMORY_RUNNING_CRITICAL,
+                MemoryGovernor.TRIM_MEMORY_BACKGROUND,
+                MemoryGovernor.TRIM_MEMORY_MODERATE,
+                MemoryGovernor.TRIM_MEMORY_COMPLETE,
+        };
+        MemoryGovernor.Pressure[] expected = {
+                MemoryGovernor.Pressure.MODERATE,
+                MemoryGovernor.Pressure.LOW,
+                MemoryGovernor.Pressure.CRITICAL,
+                MemoryGovernor.Pressure.MODERATE,
+                MemoryGovernor.Pressure.LOW,
+                MemoryGovernor.Pressure.CRITICAL,
+        };
+        for (int i = 0; i < levels.length; i++) {
+            TestGovernor governor = new TestGovernor(BUDGET);
+            governor.onTrimMemory(levels[i]);
+            assertEquals("level " + levels[i], expected[i], governor.getPressure());
+        }
+    }
+
+    @Test
+    public void uiHiddenIsNotPressure() {
+        mGovernor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(MemoryGovernor.Pressure.NONE, mGovernor.getPressure());
+    }
+
+    @Test
+    public void decisionsFollowPressure() {
+        mGovernor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_RUNNING_MODERATE);
+        assertTrue(mGovernor.shouldShrinkBuffers());
+        assertFalse(mGovernor.useLowMemoryMerge());
+        assertFalse(mGovernor.shouldDeferPostProcessing());
+
+        mGovernor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_RUNNING_LOW);
+        assertTrue(mGovernor.shouldShrinkBuffers());
+        assertTrue(mGovernor.useLowMemoryMerge());
+        assertFalse(mGovernor.shouldDeferPostProcessing());
+
+        mGovernor.onLowMemory();
+        assertTrue(mGovernor.shouldShrinkBuffers());
+        assertTrue(mGovernor.useLowMemoryMerge());
+        assertTrue(mGovernor.shouldDeferPostProcessing());
+    }
+
+    @Test
+    public void pressureRelaxesOneStepPerInterval() {
+        mGovernor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_COMPLETE);
+
+        advance(MemoryGovernor.RELAX_INTERVAL_MS - 1);
+        assertEquals(MemoryGovernor.Pressure.CRITICAL, mGovernor.getPressure());
+        advance(1);
+        assertEquals(MemoryGovernor.Pressure.LOW, mGovernor.getPressure());
+        assertFalse(mGovernor.shouldDeferPostProcessing());
+        assertTrue(mGovernor.useLowMemoryMerge());
+
+        advance(MemoryGovernor.RELAX_INTERVAL_MS);
+        assertEquals(MemoryGovernor.Pressure.MODERATE, mGovernor.getPressure());
+        assertFalse(mGovernor.useLowMemoryMerge());
+        assertTrue(mGovernor.shouldShrinkBuffers());
+
+        advance(MemoryGovernor.RELAX_INTERVAL_MS);
+        assertEquals(MemoryGovernor.Pressure.NONE, mGovernor.getPressure());
+        assertFalse(mGovernor.shouldShrinkBuffers());
+    }
+
+    @Test
+    public void pressureRelaxesSeveralStepsAtOnce() {
+        mGovernor.onLowMemory();
+        advance(2 * MemoryGovernor.RELAX_INTERVAL_MS + 5);
+        assertEquals(MemoryGovernor.Pressure.MODERATE, mGovernor.getPressure());
+
+        // the remainder counts towards the next step
+        advance(MemoryGovernor.RELAX_INTERVAL_MS - 5);
+        assertEquals(MemoryGovernor.Pressure.NONE, mGovernor.getPressure());
+    }
+
+    @Test
+    public void weakerSignalKeepsPressureButRestartsTheInterval() {
+        mGovernor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_RUNNING_CRITICAL);
+        advance(MemoryGovernor.RELAX_INTERVAL_MS - 1000);
+        mGovernor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(MemoryGovernor.Pressure.CRITICAL, mGovernor.getPressure());
+
+        advance(MemoryGovernor.RELAX_INTERVAL_MS - 1);
+        assertEquals(MemoryGovernor.Pressure.CRITICAL, mGovernor.getPressure());
+        advance(1);
+        assertEquals(MemoryGovernor.Pressure.LOW, mGovernor.getPressure());
+    }
+
+    @Test
+    public void signalAfterRelaxingRaisesAgain() {
+        mGovernor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_RUNNING_LOW);
+        advance(2 * MemoryGovernor.RELAX_INTERVAL_MS);
+        assertEquals(MemoryGovernor.Pressure.NONE, mGovernor.getPressure());
+
+        mGovernor.onTrimMemory(MemoryGovernor.TRIM_MEMORY_RUNNING_MODERATE);
+        assertEquals(MemoryGovernor.Pressure.MODERATE, mGovernor.getPressure());
+    }
+
+    @Test
+    public void usageOverBudgetForcesLowMemoryMerge() {
+        mGovernor.setUsage(MemoryGovernor.USAGE_ENCODER, BUDGET / 2);
+        mGovernor.setUsage(MemoryGovernor.USAGE_MERGE, BUDGET / 2);
+        assertEquals(BUDGET, mGovernor.getUsage());
+        assertFalse(mGovernor.useLowMemoryMerge());
+
+        mGovernor.setUsage(MemoryGovernor.USAGE_MERGE, BUDGET / 2 + 1);
+        assertTrue(mGovernor.useLowMemoryMerge());
+        // usage alone is no reason to shrink or defer
+        assertFalse(mGovernor.shouldShrinkBuffers());
+        assertFalse(mGovernor.shouldDeferPostProcessing());
+
+        mGovernor.setUsage(MemoryGovernor.USAGE_MERGE, 0);
+        assertEquals(BUDGET / 2, mGovernor.getUsage());
+        assertFalse(mGovernor.useLowMemoryMerge());
+    }
+}
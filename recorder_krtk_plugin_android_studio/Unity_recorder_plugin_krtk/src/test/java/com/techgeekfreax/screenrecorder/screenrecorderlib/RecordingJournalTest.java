@@ -0,0 +1,53 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RecordingJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void liveSessionIsNotUnfinished() throws Exception {
+        File sessions = mFolder.newFolder();
+        RecordingJournal live = RecordingJournal.begin(sessions);
+        live.segmentFinished(live.nextVideoSegment());
+
+        // e.g. the activity is recreated while recording
+        assertTrue(RecordingJournal.findUnfinished(sessions).isEmpty());
+        live.complete();
+        assertFalse(live.getDirectory().exists());
+    }
+
+    @Test
+    public void unfinishedSessionIsReturnedOnce() throws Exception {
+        File sessions = mFolder.newFolder();
+        RecordingJournal journal = RecordingJournal.begin(sessions);
+        journal.segmentFinished(journal.nextVideoSegment());
+        journal.stopped();
+        // what a crashed process leaves behind: the files, but no claim in this process
+        File dir = journal.getDirectory();
+        File copy = new File(sessions, "session_0");
+        assertTrue(dir.renameTo(copy));
+
+        List<RecordingJournal> unfinished = RecordingJournal.findUnfinished(sessions);
+        assertEquals(1, unfinished.size());
+        RecordingJournal recovered = unfinished.get(0);
+        assertEquals(RecordingJournal.STATE_STOPPED, recovered.getState());
+        assertEquals(1, recovered.getVideoSegments().size());
+
+        // already being recovered
+        assertTrue(RecordingJournal.findUnfinished(sessions).isEmpty());
+        recovered.complete();
+        assertTrue(RecordingJournal.findUnfinished(sessions).isEmpty());
+    }
+}
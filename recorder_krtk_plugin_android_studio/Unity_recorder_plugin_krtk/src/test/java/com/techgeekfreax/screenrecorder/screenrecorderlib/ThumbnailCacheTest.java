@@ -0,0 +1,118 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ThumbnailCacheTest {
+
+    private static final int ENTRY_BYTES = 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void write(File file, int size) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+    }
+
+    private File video(String name) throws IOException {
+        File video = mFolder.newFile(name);
+        write(video, 100);
+        return video;
+    }
+
+    private static void put(ThumbnailCache cache, File video) throws IOException {
+        File tmp = cache.begin(video);
+        write(new File(tmp, ThumbnailCache.THUMBNAIL), ENTRY_BYTES / 2);
+        write(new File(tmp, ThumbnailCache.STRIP), ENTRY_BYTES / 2);
+        cache.commit(video, tmp);
+    }
+
+    @Test
+    public void keyFollowsTheVideoFile() throws Exception {
+        File video = video("a.mp4");
+        String key = ThumbnailCache.key(video);
+        assertEquals(key, ThumbnailCache.key(video));
+        assertEquals(24, key.length());
+        assertNotEquals(key, ThumbnailCache.key(video("b.mp4")));
+
+        // rewritten in place: same path, other length
+        write(video, 200);
+        assertTrue(video.setLastModified(1000000000000L));
+        String rewritten = ThumbnailCache.key(video);
+        assertNotEquals(key, rewritten);
+
+        // touched: same path and length, other modification time
+        assertTrue(video.setLastModified(2000000000000L));
+        assertNotEquals(rewritten, ThumbnailCache.key(video));
+    }
+
+    @Test
+    public void changedVideoHasNoThumbnail() throws Exception {
+        ThumbnailCache cache = new ThumbnailCache(mFolder.newFolder(), 1 << 20);
+        File video = video("a.mp4");
+        assertNull(cache.getThumbnail(video));
+
+        put(cache, video);
+        assertNotNull(cache.getThumbnail(video));
+        assertNotNull(cache.getStrip(video));
+
+        write(video, 300);
+        assertNull(cache.getThumbnail(video));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() throws Exception {
+        File dir = mFolder.newFolder();
+        ThumbnailCache cache = new ThumbnailCache(dir, 2 * ENTRY_BYTES + ENTRY_BYTES / 2);
+        File first = video("first.mp4");
+        File second = video("second.mp4");
+        File third = video("third.mp4");
+
+        put(cache, first);
+        put(cache, second);
+        long now = System.currentTimeMillis();
+        // the entries were used in this order, without relying on the file system clock resolution
+        assertTrue(new File(dir, ThumbnailCache.key(first)).setLastModified(now - 20000));
+        assertTrue(new File(dir, ThumbnailCache.key(second)).setLastModified(now - 10000));
+
+        // using the first entry makes the second the least recently used one
+        assertNotNull(cache.getThumbnail(first));
+        put(cache, third);
+
+        assertNotNull(cache.getThumbnail(first));
+        assertNull(cache.getThumbnail(second));
+        assertNotNull(cache.getThumbnail(third));
+        assertFalse(new File(dir, ThumbnailCache.key(second)).exists());
+    }
+
+    @Test
+    public void evictionSkipsEntriesBeingWritten() throws Exception {
+        File dir = mFolder.newFolder();
+        ThumbnailCache cache = new ThumbnailCache(dir, ENTRY_BYTES / 2);
+        File pending = video("pending.mp4");
+        File tmp = cache.begin(pending);
+        write(new File(tmp, ThumbnailCache.THUMBNAIL), ENTRY_BYTES);
+        assertTrue(tmp.setLastModified(System.currentTimeMillis() - 60000));
+
+        put(cache, video("done.mp4"));
+        // the older entry in progress is over budget on its own, but still there
+        assertTrue(new File(tmp, ThumbnailCache.THUMBNAIL).exists());
+    }
+}
@@ -0,0 +1,51 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class VideoKeyframesTest {
+
+    @Test
+    public void replacesLengthPrefixesWithStartCodes() {
+        ByteBuffer sample = ByteBuffer.wrap(new byte[]{
+                0, 0, 0, 3, 0x65, 1, 2,
+                0, 0, 0, 1, 0x06,
+                0, 0, 0, 2, 0x41, 9});
+        sample.position(0);
+
+        byte[] annexB = VideoKeyframes.toAnnexB(sample, 4);
+        assertArrayEquals(new byte[]{
+                0, 0, 0, 1, 0x65, 1, 2,
+                0, 0, 0, 1, 0x06,
+                0, 0, 0, 1, 0x41, 9}, annexB);
+        // the sample itself is left alone
+        assertEquals(0, sample.position());
+    }
+
+    @Test
+    public void shortLengthPrefixesGrowTheOutput() {
+        ByteBuffer sample = ByteBuffer.wrap(new byte[]{0, 2, 0x67, 7, 0, 1, 0x68});
+
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0x67, 7, 0, 0, 0, 1, 0x68}, VideoKeyframes.toAnnexB(sample, 2));
+    }
+
+    @Test
+    public void readsFromTheBufferPosition() {
+        ByteBuffer sample = ByteBuffer.wrap(new byte[]{9, 9, 0, 0, 0, 2, 0x65, 5});
+        sample.position(2);
+
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0x65, 5}, VideoKeyframes.toAnnexB(sample, 4));
+    }
+
+    @Test
+    public void dropsTruncatedNal() {
+        // the second NAL claims more bytes than the sample holds
+        ByteBuffer sample = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x65, 0, 0, 0, 9, 0x41, 1});
+
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0x65}, VideoKeyframes.toAnnexB(sample, 4));
+    }
+}
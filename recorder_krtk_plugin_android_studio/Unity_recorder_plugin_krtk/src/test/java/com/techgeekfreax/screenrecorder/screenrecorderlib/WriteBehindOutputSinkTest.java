@@ -0,0 +1,150 @@
+package com.techgeekfreax.screenrecorder.screenrecorderlib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBehindOutputSinkTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void randomWritesFlushesAndPatchesMatchReference() throws Exception {
+        Random random = new Random(1);
+        for (int iteration = 0; iteration < 20; iteration++) {
+            File file = mFolder.newFile();
+            // small blocks and a short queue, so blocks are reused and write() has to wait
+            WriteBehindOutputSink sink = new WriteBehindOutputSink(file, 1 << 20, 4096, 2, 16384, 5);
+            ByteArrayOutputStream appended = new ByteArrayOutputStream();
+
+            for (int i = 0; i < 500; i++) {
+                int op = random.nextInt(20);
+                if (op == 0 && sink.position() > 10) {
+                    byte[] reference = appended.toByteArray();
+                    int length = 1 + random.nextInt((int) Math.min(9000, sink.position()));
+                    int position = (int) (random.nextDouble() * (sink.position() - length));
+                    byte[] patch = new byte[length];
+                    random.nextBytes(patch);
+                    System.arraycopy(patch, 0, reference, position, length);
+                    appended.reset();
+                    appended.write(reference);
+
+                    // the patch does not start at position 0 of its buffer
+                    ByteBuffer buffer = ByteBuffer.allocate(length + 3);
+                    buffer.position(3);
+                    buffer.put(patch);
+                    buffer.position(3);
+                    sink.writeAt(buffer, position);
+                    assertEquals(0, buffer.remaining());
+                } else if (op == 1) {
+                    sink.flush();
+                } else {
+                    byte[] data = new byte[random.nextInt(3000)];
+                    random.nextBytes(data);
+                    appended.write(data);
+                    sink.write(ByteBuffer.wrap(data));
+                }
+                assertEquals(appended.size(), sink.position());
+            }
+            sink.close();
+
+            assertArrayEquals(appended.toByteArray(), Files.readAllBytes(file.toPath()));
+        }
+    }
+
+    @Test
+    public void closeTrimsPreallocation() throws Exception {
+        File file = mFolder.newFile();
+        WriteBehindOutputSink sink = new WriteBehindOutputSink(file, 1 << 20);
+        sink.write(ByteBuffer.wrap(new byte[1000]));
+        sink.close();
+        assertEquals(1000, file.length());
+    }
+
+    @Test
+    public void timeBasedSyncRunsWhileIdle() throws Exception {
+        // byte-based sync disabled, large blocks: only the timer can force this data
+        WriteBehindOutputSink sink = new WriteBehindOutputSink(mFolder.newFile(), 0, 64 * 1024, 8, 0, 50);
+        sink.write(ByteBuffer.wrap(new byte[100]));
+        sink.flush();
+        int syncs = sink.getStats().syncCount;
+
+        waitForSyncCount(sink, syncs + 1, 2000);
+        int synced = sink.getStats().syncCount;
+        assertTrue("no sync while idle", synced > syncs);
+
+        // nothing new was written, so there is nothing more to sync
+        Thread.sleep(200);
+        assertEquals(synced, sink.getStats().syncCount);
+        sink.close();
+    }
+
+    @Test
+    public void timeBasedSyncCountsFromTheFirstUnsyncedWrite() throws Exception {
+        WriteBehindOutputSink sink = new WriteBehindOutputSink(mFolder.newFile(), 0, 4096, 8, 0, 300);
+        // idle for longer than the interval with nothing to sync
+        Thread.sleep(400);
+        int syncs = sink.getStats().syncCount;
+
+        sink.write(ByteBuffer.wrap(new byte[4096]));
+        sink.flush();
+        // the interval starts with this write, not with the last sync
+        Thread.sleep(100);
+        assertEquals(syncs, sink.getStats().syncCount);
+        waitForSyncCount(sink, syncs + 1, 2000);
+        sink.close();
+    }
+
+    @Test
+    public void syncAsyncRunsCallbackAfterForcingOnTheIoThread() throws Exception {
+        File file = mFolder.newFile();
+        WriteBehindOutputSink sink = new WriteBehindOutputSink(file, 0, 4096, 8, 0, 0);
+        sink.write(ByteBuffer.wrap(new byte[1000]));
+
+        final long[] synced = new long[2];
+        final Thread[] callbackThread = new Thread[1];
+        final File target = file;
+        final WriteBehindOutputSink observed = sink;
+        final CountDownLatch done = new CountDownLatch(1);
+        sink.syncAsync(new Runnable() {
+            @Override
+            public void run() {
+                synced[0] = target.length();
+                synced[1] = observed.getStats().syncCount;
+                callbackThread[0] = Thread.currentThread();
+                done.countDown();
+            }
+        });
+        // the writer keeps going while the force is pending
+        sink.write(ByteBuffer.wrap(new byte[1000]));
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue("partial block was not written before the barrier", synced[0] >= 1000);
+        assertEquals(1, synced[1]);
+        assertNotSame(Thread.currentThread(), callbackThread[0]);
+        sink.close();
+        assertEquals(2000, file.length());
+    }
+
+    private static void waitForSyncCount(OutputSink sink, int count, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (sink.getStats().syncCount < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("expected " + count + " syncs, got " + sink.getStats().syncCount, sink.getStats().syncCount >= count);
+    }
+}